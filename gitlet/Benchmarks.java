@@ -0,0 +1,767 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/** A benchmarking class whose main program may be invoked as follows:
+ *      java gitlet.Benchmarks NAME [ARGS...]
+ *  where NAME picks one of the benchmarks below. Each one builds its own
+ *  data, times the operation it is about after a warm-up, and prints the
+ *  results, so numbers can be compared before and after a change.
+ *
+ *      codec [FILES]   encode and decode a commit that tracks FILES files
+ *                      (default 1000) with Java serialization and with the
+ *                      binary format of Commit.toBytes.
+ *      status [FILES] [SIZE]
+ *                      time status on an unchanged, committed tree of FILES
+ *                      files (default 100000) of SIZE bytes (default 256),
+ *                      then again with files 16 times larger. The tree is
+ *                      built in a temporary directory, which becomes the
+ *                      working directory of this run.
+ *      add [FILES] [SIZE]
+ *                      time `add .` of FILES files (default 2000) of SIZE
+ *                      bytes (default 262144) into an empty repository,
+ *                      with 1, 2, 4, ... threads up to the number of
+ *                      processors, and print the throughput of each.
+ *      history [COMMITS]
+ *                      build a history of COMMITS commits (default 20000),
+ *                      every tenth a merge, and time a walk over all of it
+ *                      by decoding commits and by reading the commit graph.
+ *                      Then time the merge base of the last commit and a
+ *                      topic branch forked five commits earlier, with a
+ *                      BFS over all ancestors and with
+ *                      CommitGraph.mergeBases. Last, time the set of
+ *                      commits reachable from the last commit and whether
+ *                      the first is its ancestor, before and after
+ *                      writing reachability bitmaps.
+ *      scan [DIRS] [FILES]
+ *                      time WorkingTree.scan of a tree of DIRS directories
+ *                      (default 2000), two levels deep, with FILES empty
+ *                      files each (default 50), with 1, 2, 4, ... threads
+ *                      up to the number of processors.
+ *      merge [FILES]   build a split point of FILES files (default
+ *                      500000) in directories of 1000, and two commits
+ *                      that each change one file in a hundred of it, some
+ *                      of them the same. Time the three-way classification
+ *                      of merge over HashMap manifests of the three
+ *                      commits, and as the sorted merge-join of Tree.merge.
+ *      diff3 [LINES]   build a text file of LINES lines (default 1000000)
+ *                      and two versions that each change one line in a
+ *                      hundred, some of them the same line. Time splitting
+ *                      the three into interned lines, against interning
+ *                      them as Strings in a HashMap, then the line diff of
+ *                      each side and the whole three-way LineMerge.
+ *      diff [LINES]    build a text file of LINES lines (default 1000000)
+ *                      with many repeated lines, and a version with one
+ *                      line in fifty changed, inserted or deleted. Time
+ *                      the Myers and the histogram diff of the two, and
+ *                      writing the unified diff against only counting
+ *                      lines, as diff --stat does.
+ *      renames [FILES] build FILES files (default 5000) of 60 lines, then
+ *                      move each to a new name with three lines changed,
+ *                      next to a fifth as many unrelated files removed and
+ *                      added. Time Renames.detect, and scoring every
+ *                      removed file against every added one.
+ *      fsck [FILES] [SIZE]
+ *                      commit FILES files (default 2000) of SIZE bytes
+ *                      (default 65536) and time fsck of the repository
+ *                      with 1, 2, 4, ... threads up to the number of
+ *                      processors, and print the throughput of each.
+ *  @author BillyDu
+ */
+public class Benchmarks {
+
+    /** Number of untimed runs before each measurement. */
+    private static final int WARMUP = 2000;
+    /** Number of timed runs in each measurement. */
+    private static final int RUNS = 3000;
+
+    /** Run the benchmark named by ARGS[0] with the rest of ARGS. */
+    public static void main(String... args) {
+        if (args.length == 0) {
+            System.out.println("Usage: java gitlet.Benchmarks NAME [ARGS...]");
+            return;
+        }
+        String[] rest = Arrays.copyOfRange(args, 1, args.length);
+        switch (args[0]) {
+            case "codec":
+                codec(rest);
+                break;
+            case "status":
+                status(rest);
+                break;
+            case "add":
+                add(rest);
+                break;
+            case "history":
+                history(rest);
+                break;
+            case "scan":
+                scan(rest);
+                break;
+            case "merge":
+                merge(rest);
+                break;
+            case "diff3":
+                diff3(rest);
+                break;
+            case "diff":
+                diff(rest);
+                break;
+            case "renames":
+                renames(rest);
+                break;
+            case "fsck":
+                fsck(rest);
+                break;
+            default:
+                System.out.println("No benchmark with that name exists.");
+        }
+    }
+
+    /** Compare Java serialization of a commit with the binary format. */
+    private static void codec(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        Map<String, String> blobs = new HashMap<>();
+        for (int i = 0; i < files; i += 1) {
+            blobs.put("file" + i + ".txt", Utils.sha1("blob " + i));
+        }
+        List<String> parents = new ArrayList<>();
+        parents.add(Utils.sha1("parent"));
+        Commit commit = new Commit("benchmark commit", parents, blobs);
+
+        byte[] serialized = Utils.serialize(commit);
+        byte[] encoded = commit.toBytes();
+        System.out.printf("commit with %d files%n", files);
+        System.out.printf("serialized size: %d bytes%n", serialized.length);
+        System.out.printf("binary size:     %d bytes%n", encoded.length);
+
+        double serializeNs = time(() -> Utils.serialize(commit));
+        double encodeNs = time(commit::toBytes);
+        double deserializeNs = time(() -> Utils.readObject(
+                new ByteArrayInputStream(serialized), Commit.class));
+        double decodeNs = time(() -> Commit.fromBytes(encoded));
+        System.out.printf("serialize:   %10.0f ns/op%n", serializeNs);
+        System.out.printf("encode:      %10.0f ns/op (%.1fx)%n",
+                encodeNs, serializeNs / encodeNs);
+        System.out.printf("deserialize: %10.0f ns/op%n", deserializeNs);
+        System.out.printf("decode:      %10.0f ns/op (%.1fx)%n",
+                decodeNs, deserializeNs / decodeNs);
+    }
+
+    /** Time add . with different numbers of threads. */
+    private static void add(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 256 << 10;
+        Path dir = useTemporaryCWD();
+        PrintStream stdout = System.out;
+        try {
+            writeTree(dir.toFile(), files, size);
+            int processors = Runtime.getRuntime().availableProcessors();
+            List<Integer> jobCounts = new ArrayList<>();
+            for (int jobs = 1; jobs < processors; jobs *= 2) {
+                jobCounts.add(jobs);
+            }
+            jobCounts.add(processors);
+            double mbytes = (double) files * size / (1 << 20);
+            for (int jobs : jobCounts) {
+                /** start from an empty repository each time, so every
+                 * file is hashed and stored again. */
+                if (Repository.GITLET_DIR.exists()) {
+                    deleteTree(Repository.GITLET_DIR.toPath());
+                }
+                quietly(Repository::initRepo);
+                long start = System.nanoTime();
+                quietly(() -> Repository.addAll(jobs));
+                double seconds = (System.nanoTime() - start) / 1e9;
+                stdout.printf("%2d threads: %.2f s, %.1f MB/s%n",
+                        jobs, seconds, mbytes / seconds);
+            }
+        } finally {
+            System.setOut(stdout);
+            deleteTree(dir);
+        }
+    }
+
+    /** Compare walking a history by decoding commits with walking the
+     *  commit graph. */
+    private static void history(String[] args) {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Path dir = useTemporaryCWD();
+        PrintStream stdout = System.out;
+        try {
+            quietly(Repository::initRepo);
+            String head = buildHistory(commits);
+            System.out.printf("history of %d commits%n", CommitGraph.size());
+
+            long decodeNs = best(() -> {
+                Set<String> visited = new HashSet<>();
+                Deque<String> queue = new ArrayDeque<>();
+                queue.add(head);
+                while (!queue.isEmpty()) {
+                    String sha1 = queue.poll();
+                    if (!visited.add(sha1)) {
+                        continue;
+                    }
+                    Commit commit = Repository.getCommitBySHA1(sha1);
+                    if (commit.getFirstParent() != null) {
+                        queue.add(commit.getFirstParent());
+                    }
+                    if (commit.getSecondParent() != null) {
+                        queue.add(commit.getSecondParent());
+                    }
+                }
+            });
+            long graphNs = best(() -> {
+                BitSet visited = new BitSet(CommitGraph.size());
+                Deque<Integer> queue = new ArrayDeque<>();
+                queue.add(CommitGraph.position(head));
+                while (!queue.isEmpty()) {
+                    int pos = queue.poll();
+                    if (visited.get(pos)) {
+                        continue;
+                    }
+                    visited.set(pos);
+                    if (CommitGraph.firstParent(pos) >= 0) {
+                        queue.add(CommitGraph.firstParent(pos));
+                    }
+                    if (CommitGraph.secondParent(pos) >= 0) {
+                        queue.add(CommitGraph.secondParent(pos));
+                    }
+                }
+            });
+            System.out.printf("walk decoding commits: %8.1f ms%n", decodeNs / 1e6);
+            System.out.printf("walk commit graph:     %8.1f ms (%.1fx)%n",
+                    graphNs / 1e6, (double) decodeNs / graphNs);
+
+            int fork = CommitGraph.position(head);
+            for (int i = 0; i < 5; i += 1) {
+                fork = CommitGraph.firstParent(fork);
+            }
+            List<String> forkParents = new ArrayList<>();
+            forkParents.add(CommitGraph.id(fork));
+            int topic = CommitGraph.position(Repository.saveCommit(
+                    new Commit("topic", forkParents, CommitGraph.tree(fork))));
+            int current = CommitGraph.position(head);
+            long bfsNs = best(() -> bfsSplitPoint(current, topic));
+            long baseNs = best(() -> CommitGraph.mergeBases(current, topic));
+            System.out.printf("merge base by BFS:     %8.3f ms%n", bfsNs / 1e6);
+            System.out.printf("mergeBases:            %8.3f ms (%.1fx)%n",
+                    baseNs / 1e6, (double) bfsNs / baseNs);
+
+            List<Integer> tips = new ArrayList<>();
+            tips.add(current);
+            long walkNs = best(() -> CommitBitmaps.reachable(tips));
+            long ancestorWalkNs = best(() -> CommitBitmaps.isAncestor(0, current));
+            int bitmaps = CommitBitmaps.write(tips);
+            long bitmapNs = best(() -> CommitBitmaps.reachable(tips));
+            long ancestorBitmapNs = best(() -> CommitBitmaps.isAncestor(0, current));
+            System.out.printf("%d bitmaps, %d bytes%n",
+                    bitmaps, CommitBitmaps.BITMAP_FILE.length());
+            System.out.printf("reachable, walk:       %8.3f ms%n", walkNs / 1e6);
+            System.out.printf("reachable, bitmaps:    %8.3f ms (%.1fx)%n",
+                    bitmapNs / 1e6, (double) walkNs / bitmapNs);
+            System.out.printf("ancestor, walk:        %8.3f ms%n", ancestorWalkNs / 1e6);
+            System.out.printf("ancestor, bitmaps:     %8.3f ms (%.1fx)%n",
+                    ancestorBitmapNs / 1e6, (double) ancestorWalkNs / ancestorBitmapNs);
+        } finally {
+            System.setOut(stdout);
+            deleteTree(dir);
+        }
+    }
+
+    /** Return the first commit in a BFS from B that is an ancestor of A,
+     *  after marking every ancestor of A, as the split point search did
+     *  before CommitGraph.mergeBases. */
+    private static int bfsSplitPoint(int a, int b) {
+        BitSet ancestors = new BitSet(CommitGraph.size());
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(a);
+        while (!queue.isEmpty()) {
+            int pos = queue.poll();
+            if (ancestors.get(pos)) {
+                continue;
+            }
+            ancestors.set(pos);
+            if (CommitGraph.firstParent(pos) >= 0) {
+                queue.add(CommitGraph.firstParent(pos));
+            }
+            if (CommitGraph.secondParent(pos) >= 0) {
+                queue.add(CommitGraph.secondParent(pos));
+            }
+        }
+        queue.add(b);
+        while (!queue.isEmpty()) {
+            int pos = queue.poll();
+            if (ancestors.get(pos)) {
+                return pos;
+            }
+            if (CommitGraph.firstParent(pos) >= 0) {
+                queue.add(CommitGraph.firstParent(pos));
+            }
+            if (CommitGraph.secondParent(pos) >= 0) {
+                queue.add(CommitGraph.secondParent(pos));
+            }
+        }
+        return -1;
+    }
+
+    /** Add COMMITS commits on top of HEAD of a fresh repository, every
+     *  tenth merging in a commit of its own, all of one small tree, and
+     *  return the id of the last. */
+    private static String buildHistory(int commits) {
+        Map<String, String> files = new HashMap<>();
+        for (int i = 0; i < 100; i += 1) {
+            files.put("dir" + (i % 10) + "/file" + i + ".txt", Utils.sha1("blob " + i));
+        }
+        String tree = Tree.update(null, files);
+        String head = Repository.readHEAD();
+        for (int i = 1; i < commits; i += 1) {
+            List<String> parents = new ArrayList<>();
+            parents.add(head);
+            if (i % 10 == 0) {
+                parents.add(Repository.saveCommit(new Commit("side " + i,
+                        new ArrayList<>(parents), tree)));
+                i += 1;
+            }
+            head = Repository.saveCommit(new Commit("commit " + i, parents, tree));
+        }
+        return head;
+    }
+
+    /** Return the best time of three calls to TASK, in nanoseconds. */
+    private static long best(Runnable task) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i += 1) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /** Time scans of a deep working tree with different numbers of
+     *  threads. */
+    private static void scan(String[] args) {
+        int dirs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        Path dir = useTemporaryCWD();
+        try {
+            int fanout = (int) Math.ceil(Math.sqrt(dirs));
+            for (int i = 0; i < dirs; i += 1) {
+                File subdir = new File(dir.toFile(), "d" + (i / fanout) + "/d" + i);
+                subdir.mkdirs();
+                writeTree(subdir, files, 0);
+            }
+            int processors = Runtime.getRuntime().availableProcessors();
+            GitletIgnore ignore = new GitletIgnore();
+            for (int jobs = 1; ; jobs = Math.min(jobs * 2, processors)) {
+                int count = 0;
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < 3; i += 1) {
+                    long start = System.nanoTime();
+                    count = WorkingTree.scan(ignore, jobs).size();
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.printf("%2d threads: %d files in %.1f ms%n",
+                        jobs, count, best / 1e6);
+                if (jobs == processors) {
+                    break;
+                }
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    /** Compare classifying the files of a merge by looking each one up in
+     *  hashed manifests with the sorted merge-join of Tree.merge. */
+    private static void merge(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        Path dir = useTemporaryCWD();
+        PrintStream stdout = System.out;
+        try {
+            quietly(Repository::initRepo);
+
+            /** the blobs need not exist, since only trees are read. */
+            Map<String, String> base = new HashMap<>();
+            Map<String, String> ours = new HashMap<>();
+            Map<String, String> theirs = new HashMap<>();
+            for (int i = 0; i < files; i += 1) {
+                String path = "d" + (i / 1000) + "/f" + i + ".txt";
+                base.put(path, Utils.sha1("base " + i));
+                if (i % 100 == 0) {
+                    ours.put(path, Utils.sha1("ours " + i));
+                }
+                if (i % 100 == 50 || i % 1000 == 0) {
+                    theirs.put(path, Utils.sha1("theirs " + i));
+                }
+            }
+            String split = Tree.update(null, base);
+            String current = Tree.update(split, ours);
+            String branch = Tree.update(split, theirs);
+            System.out.printf("merge of %d files, %d and %d changed%n",
+                    files, ours.size(), theirs.size());
+
+            /** as merge did before: the union of all names, and a lookup
+             * in each of the three manifests for every one of them. */
+            Map<String, String> s = new HashMap<>(Tree.flatten(split));
+            Map<String, String> c = new HashMap<>(Tree.flatten(current));
+            Map<String, String> b = new HashMap<>(Tree.flatten(branch));
+            int[] counts = new int[2];
+            long hashNs = best(() -> {
+                counts[0] = 0;
+                Set<String> all = new HashSet<>(s.keySet());
+                all.addAll(c.keySet());
+                all.addAll(b.keySet());
+                for (String path : all) {
+                    if (!Objects.equals(c.get(path), b.get(path))
+                            && !Objects.equals(s.get(path), b.get(path))) {
+                        counts[0] += 1;
+                    }
+                }
+            });
+            long joinNs = best(() -> {
+                counts[1] = 0;
+                Tree.merge(split, current, branch, (path, x, y, z) -> {
+                    if (!Objects.equals(x, z)) {
+                        counts[1] += 1;
+                    }
+                });
+            });
+            System.out.printf("hashed manifests: %8.1f ms, %d files to take or merge%n",
+                    hashNs / 1e6, counts[0]);
+            System.out.printf("sorted merge-join: %7.1f ms, %d files to take or merge%n",
+                    joinNs / 1e6, counts[1]);
+        } finally {
+            System.setOut(stdout);
+            deleteTree(dir);
+        }
+    }
+
+    /** Time the parts of a line-by-line three-way merge of large
+     *  files. */
+    private static void diff3(String[] args) {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        StringBuilder base = new StringBuilder();
+        StringBuilder ours = new StringBuilder();
+        StringBuilder theirs = new StringBuilder();
+        for (int i = 0; i < lines; i += 1) {
+            String line = "line " + i + " of a long file that both sides edit\n";
+            base.append(line);
+            ours.append(i % 100 == 0 ? "ours " + i + "\n" : line);
+            theirs.append(i % 100 == 50 || i % 1000 == 0 ? "theirs " + i + "\n" : line);
+        }
+        byte[] o = base.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] a = ours.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] b = theirs.toString().getBytes(StandardCharsets.UTF_8);
+        double mbytes = (double) (o.length + a.length + b.length) / (1 << 20);
+        System.out.printf("merge of %d lines, %.1f MB in all%n", lines, mbytes);
+
+        long stringNs = best(() -> {
+            Map<String, Integer> ids = new HashMap<>();
+            for (byte[] text : new byte[][] {o, a, b}) {
+                String[] split = new String(text, StandardCharsets.UTF_8).split("\n", -1);
+                int[] lineIds = new int[split.length];
+                for (int i = 0; i < split.length; i += 1) {
+                    lineIds[i] = ids.computeIfAbsent(split[i], k -> ids.size());
+                }
+            }
+        });
+        long internNs = best(() -> LineDiff.split(o, a, b));
+        LineDiff.Lines[] split = LineDiff.split(o, a, b);
+        long diffNs = best(() -> {
+            LineDiff.diff(split[0].ids, split[1].ids);
+            LineDiff.diff(split[0].ids, split[2].ids);
+        });
+        int[] conflicts = new int[1];
+        long mergeNs = best(() -> conflicts[0] = LineMerge.merge(o, a, b).conflicts);
+        System.out.printf("String lines in a HashMap: %7.1f ms%n", stringNs / 1e6);
+        System.out.printf("interned lines:            %7.1f ms, %.1f MB/s%n",
+                internNs / 1e6, mbytes / (internNs / 1e9));
+        System.out.printf("diff of both sides:        %7.1f ms%n", diffNs / 1e6);
+        System.out.printf("three-way merge:           %7.1f ms, %.1f MB/s, %d conflicts%n",
+                mergeNs / 1e6, mbytes / (mergeNs / 1e9), conflicts[0]);
+    }
+
+    /** Compare the two line diffs, and writing hunks with counting
+     *  lines, on a large file. */
+    private static void diff(String[] args) {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        StringBuilder before = new StringBuilder();
+        StringBuilder after = new StringBuilder();
+        Random random = new Random(61);
+        for (int i = 0; i < lines; i += 1) {
+            /** a third of the lines repeat, like braces and blank lines. */
+            String line = i % 3 == 0 ? "    }\n" : "statement " + i + ";\n";
+            before.append(line);
+            int change = random.nextInt(50);
+            if (change == 0) {
+                after.append("changed ").append(i).append(";\n");
+            } else if (change == 1) {
+                after.append(line).append("inserted ").append(i).append(";\n");
+            } else if (change != 2) {
+                after.append(line);
+            }
+        }
+        byte[] a = before.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] b = after.toString().getBytes(StandardCharsets.UTF_8);
+        LineDiff.Lines[] split = LineDiff.split(a, b);
+        System.out.printf("diff of %d lines, %.1f MB%n", lines, (double) (a.length + b.length) / (1 << 20));
+
+        int[][] counts = new int[2][];
+        long myersNs = best(() -> counts[0] = LineDiff.count(LineDiff.diff(split[0].ids, split[1].ids)));
+        long histogramNs = best(() -> counts[1] = LineDiff.count(LineDiff.histogram(split[0].ids, split[1].ids)));
+        List<LineDiff.Edit> edits = LineDiff.diff(split[0].ids, split[1].ids);
+        long[] size = new long[1];
+        long unifiedNs = best(() -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            LineDiff.unified(out, split[0], split[1], edits, 3);
+            size[0] = out.size();
+        });
+        long countNs = best(() -> LineDiff.count(edits));
+        System.out.printf("Myers:      %7.1f ms, -%d +%d lines%n",
+                myersNs / 1e6, counts[0][0], counts[0][1]);
+        System.out.printf("histogram:  %7.1f ms, -%d +%d lines%n",
+                histogramNs / 1e6, counts[1][0], counts[1][1]);
+        System.out.printf("hunks:      %7.1f ms, %d bytes%n", unifiedNs / 1e6, size[0]);
+        System.out.printf("--stat:     %7.3f ms%n", countNs / 1e6);
+    }
+
+    /** Compare rename detection by sketches with scoring all pairs. */
+    private static void renames(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        Path dir = useTemporaryCWD();
+        PrintStream stdout = System.out;
+        try {
+            quietly(Repository::initRepo);
+            Random random = new Random(files);
+            Map<String, String> removed = new HashMap<>();
+            Map<String, String> added = new HashMap<>();
+            List<byte[]> removedContents = new ArrayList<>();
+            List<byte[]> addedContents = new ArrayList<>();
+            int unrelated = files / 5;
+            for (int i = 0; i < files + unrelated; i += 1) {
+                StringBuilder before = new StringBuilder();
+                StringBuilder after = new StringBuilder();
+                for (int line = 0; line < 60; line += 1) {
+                    String text = "value " + random.nextInt() + " at line " + line + "\n";
+                    before.append(text);
+                    after.append(line % 20 == 7 ? "edited " + line + "\n" : text);
+                }
+                byte[] old = before.toString().getBytes(StandardCharsets.UTF_8);
+                byte[] moved = after.toString().getBytes(StandardCharsets.UTF_8);
+                if (i >= files) {
+                    /** unrelated: the old file is removed, and a new one
+                     * with other contents is added. */
+                    moved = (i + "\n" + before.reverse()).getBytes(StandardCharsets.UTF_8);
+                }
+                Repository.saveBlob(old);
+                Repository.saveBlob(moved);
+                removed.put("src/old/file" + i + ".txt", Utils.sha1(old));
+                added.put("src/new/moved" + i + ".txt", Utils.sha1(moved));
+                removedContents.add(old);
+                addedContents.add(moved);
+            }
+            System.out.printf("%d files removed and %d added%n", removed.size(), added.size());
+
+            int[] found = new int[2];
+            long detectNs = best(() -> {
+                found[0] = 0;
+                for (Renames.Rename rename
+                        : Renames.detect(removed, added, Renames.DEFAULT_THRESHOLD).values()) {
+                    String from = rename.from.substring(rename.from.lastIndexOf("file") + 4);
+                    String to = rename.to.substring(rename.to.lastIndexOf("moved") + 5);
+                    found[0] += from.equals(to) ? 1 : 0;
+                }
+            });
+
+            /** every pair, on sorted line hashes made once. */
+            long[][] from = lineHashes(removedContents);
+            long[][] to = lineHashes(addedContents);
+            long start = System.nanoTime();
+            for (long[] a : from) {
+                for (long[] b : to) {
+                    int common = 0;
+                    for (int i = 0, j = 0; i < a.length && j < b.length;) {
+                        if (a[i] == b[j]) {
+                            common += 1;
+                            i += 1;
+                            j += 1;
+                        } else if (a[i] < b[j]) {
+                            i += 1;
+                        } else {
+                            j += 1;
+                        }
+                    }
+                    found[1] += common * 100 >= Renames.DEFAULT_THRESHOLD
+                            * Math.max(a.length, b.length) ? 1 : 0;
+                }
+            }
+            long pairsNs = System.nanoTime() - start;
+            System.out.printf("sketches:  %8.1f ms, %d right renames%n", detectNs / 1e6, found[0]);
+            System.out.printf("all pairs: %8.1f ms, %d pairs over the threshold%n",
+                    pairsNs / 1e6, found[1]);
+        } finally {
+            System.setOut(stdout);
+            deleteTree(dir);
+        }
+    }
+
+    /** Return the sorted hashes of the lines of each of CONTENTS. */
+    private static long[][] lineHashes(List<byte[]> contents) {
+        long[][] result = new long[contents.size()][];
+        for (int i = 0; i < result.length; i += 1) {
+            String[] lines = new String(contents.get(i), StandardCharsets.UTF_8).split("\n");
+            result[i] = new long[lines.length];
+            for (int j = 0; j < lines.length; j += 1) {
+                result[i][j] = lines[j].hashCode() * 0x9e3779b97f4a7c15L + lines[j].length();
+            }
+            Arrays.sort(result[i]);
+        }
+        return result;
+    }
+
+    /** Time fsck of a repository with increasing numbers of threads. */
+    private static void fsck(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 64 << 10;
+        Path dir = useTemporaryCWD();
+        PrintStream stdout = System.out;
+        try {
+            writeTree(dir.toFile(), files, size);
+            quietly(() -> {
+                Repository.initRepo();
+                Repository.addAll();
+                Repository.commit("benchmark files");
+            });
+            int processors = Runtime.getRuntime().availableProcessors();
+            double mbytes = (double) files * size / (1 << 20);
+            for (int jobs = 1; ; jobs = Math.min(jobs * 2, processors)) {
+                int threads = jobs;
+                long best = best(() -> quietly(() -> Repository.fsck(threads)));
+                stdout.printf("%2d threads: %.1f ms, %.1f MB/s%n",
+                        jobs, best / 1e6, mbytes / (best / 1e9));
+                if (jobs == processors) {
+                    break;
+                }
+            }
+        } finally {
+            System.setOut(stdout);
+            deleteTree(dir);
+        }
+    }
+
+    /** Time status on unchanged trees whose files differ only in size,
+     *  to show that it does not read unchanged files. */
+    private static void status(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        Path dir = useTemporaryCWD();
+        PrintStream stdout = System.out;
+        try {
+            quietly(Repository::initRepo);
+            for (int fileSize : new int[] {size, size * 16}) {
+                writeTree(dir.toFile(), files, fileSize);
+                quietly(() -> {
+                    Repository.addAll();
+                    Repository.commit(fileSize + " bytes");
+                    /** the first status re-hashes files written in the
+                     * same clock tick as the stat cache. */
+                    Repository.status();
+                });
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < 3; i += 1) {
+                    long start = System.nanoTime();
+                    quietly(Repository::status);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                stdout.printf("%d files, %d bytes: status %.1f ms (%.2f us/file)%n",
+                        files, (long) files * fileSize, best / 1e6,
+                        best / 1e3 / files);
+            }
+        } finally {
+            System.setOut(stdout);
+            deleteTree(dir);
+        }
+    }
+
+    /** Create a temporary directory, make it the working directory of
+     *  Repository, and return it. Repository reads the working directory
+     *  once, when it is first used, so this must come before any call
+     *  into it. */
+    private static Path useTemporaryCWD() {
+        Path dir;
+        try {
+            dir = Files.createTempDirectory("gitlet-bench");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        System.setProperty("user.dir", dir.toString());
+        return dir;
+    }
+
+    /** Fill DIR with FILES files of SIZE random bytes each. */
+    private static void writeTree(File dir, int files, int size) {
+        Random random = new Random(files);
+        byte[] contents = new byte[size];
+        for (int i = 0; i < files; i += 1) {
+            random.nextBytes(contents);
+            Utils.writeContents(new File(dir, "file" + i + ".txt"), (Object) contents);
+        }
+    }
+
+    /** Run TASK with System.out discarded. */
+    private static void quietly(Runnable task) {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            task.run();
+        } finally {
+            System.setOut(stdout);
+        }
+    }
+
+    /** Delete DIR and everything under it. */
+    private static void deleteTree(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the mean time of one call to TASK in nanoseconds, after
+     *  WARMUP untimed calls. */
+    private static double time(Runnable task) {
+        for (int i = 0; i < WARMUP; i += 1) {
+            task.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i += 1) {
+            task.run();
+        }
+        return (double) (System.nanoTime() - start) / RUNS;
+    }
+}
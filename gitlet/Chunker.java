@@ -0,0 +1,120 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static gitlet.Utils.*;
+
+/** Content-defined chunking of large files.
+ *  Files of at least THRESHOLD bytes are cut into chunks with FastCDC: a
+ *  gear hash rolls over the data and a chunk ends wherever the hash has
+ *  zeros under a mask. Boundaries depend only on nearby content, so an
+ *  edit only changes the chunks around it and every other chunk keeps
+ *  its SHA-1, shared across versions and across files.
+ *
+ *  A chunked blob is stored as a manifest:
+ *      varint chunk count | (20-byte chunk id | varint length) ...
+ *  @author BillyDu
+ */
+class Chunker {
+    /** Files at least this long are chunked. */
+    static final long THRESHOLD = 1 << 20;
+    /** Smallest chunk, except for the last one of a file. */
+    static final int MIN_SIZE = 16 << 10;
+    /** Target average chunk size. */
+    static final int AVG_SIZE = 64 << 10;
+    /** Largest chunk. */
+    static final int MAX_SIZE = 256 << 10;
+
+    /** Mask used before AVG_SIZE: two more bits than the average calls
+     *  for, so that cuts are rarer there (FastCDC normalization). */
+    private static final long MASK_SMALL = spreadMask(18);
+    /** Mask used after AVG_SIZE: two fewer bits, so cuts come sooner. */
+    private static final long MASK_LARGE = spreadMask(14);
+
+    /** Random values for each byte value. The seed is fixed so that every
+     *  repository cuts the same content at the same places. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6769746c6574L);
+        for (int i = 0; i < GEAR.length; i += 1) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** Return a mask with BITS one bits spread evenly over the top 48 bits,
+     *  so that each tested bit has been shifted through many bytes. */
+    private static long spreadMask(int bits) {
+        long mask = 0;
+        for (int i = 0; i < bits; i += 1) {
+            mask |= 1L << (63 - i * 48 / bits);
+        }
+        return mask;
+    }
+
+    /** Return the length of the chunk that starts at OFF in BUF, where LEN
+     *  bytes are available. LEN must be at least MAX_SIZE unless the data
+     *  ends within it. */
+    static int cutPoint(byte[] buf, int off, int len) {
+        if (len <= MIN_SIZE) {
+            return len;
+        }
+        int end = Math.min(len, MAX_SIZE);
+        int normal = Math.min(AVG_SIZE, end);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i += 1) {
+            hash = (hash << 1) + GEAR[buf[off + i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i;
+            }
+        }
+        for (; i < end; i += 1) {
+            hash = (hash << 1) + GEAR[buf[off + i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /** A chunk of a chunked blob. */
+    static class Chunk {
+        /** SHA-1 of the chunk. */
+        final String id;
+        /** Length of the chunk. */
+        final int length;
+
+        Chunk(String id, int length) {
+            this.id = id;
+            this.length = length;
+        }
+    }
+
+    /** Return the manifest payload listing CHUNKS. */
+    static byte[] encodeManifest(List<Chunk> chunks) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(chunks.size() * 24 + 8);
+        Delta.writeVarint(out, chunks.size());
+        for (Chunk chunk : chunks) {
+            out.writeBytes(sha1ToBytes(chunk.id));
+            Delta.writeVarint(out, chunk.length);
+        }
+        return out.toByteArray();
+    }
+
+    /** Return the chunks listed in the manifest payload MANIFEST. */
+    static List<Chunk> decodeManifest(byte[] manifest) {
+        int[] pos = {0};
+        int count = (int) Delta.readVarint(manifest, pos);
+        List<Chunk> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i += 1) {
+            String id = bytesToSha1(manifest, pos[0], UID_LENGTH / 2);
+            pos[0] += UID_LENGTH / 2;
+            chunks.add(new Chunk(id, (int) Delta.readVarint(manifest, pos)));
+        }
+        return chunks;
+    }
+}
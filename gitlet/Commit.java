@@ -1,12 +1,13 @@
 package gitlet;
 
 // TODO: any imports you need here
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Serializable;
 import java.util.*;
 
 import static gitlet.Repository.formatDate;
-import static gitlet.Utils.serialize;
-import static gitlet.Utils.sha1;
+import static gitlet.Utils.*;
 
 /** Represents a gitlet commit object.
  *  TODO: It's a good idea to give a description here of what else this Class
@@ -14,7 +15,7 @@ import static gitlet.Utils.sha1;
  *
  *  @author TODO
  */
-public class Commit implements Serializable {
+public class Commit implements Serializable, Dumpable {
     /**
      * TODO: add instance variables here.
      *
@@ -31,11 +32,20 @@ public class Commit implements Serializable {
      * parents[0] is the HEAD parent
      * parents[1...] are merged parents. */
     private List<String> parents;
-    /** The mapping of file names to blob SHA-1s in this Commit. */
+    /** The mapping of file names to blob SHA-1s in this Commit.
+     * only set for commits from before trees existed. */
     private Map<String, String> blobs;
+    /** The SHA-1 of the root Tree of this Commit, or null if
+     * the commit lists its blobs directly. */
+    private String tree;
 
     private static final long serialVersionUID = 123456789L;
 
+    /** Format version of the binary encoding with a root tree. */
+    private static final int CODEC_VERSION = 2;
+    /** Format version of the binary encoding with a flat blob list. */
+    private static final int CODEC_VERSION_FLAT = 1;
+
     /* TODO: fill in the rest of this class. */
     /** create a new commit. Default constructor
      * is used for init a gitlet vault. */
@@ -55,22 +65,128 @@ public class Commit implements Serializable {
         blobs = blobMapping;
     }
 
+    /** create a new commit of the tree ROOTTREE. */
+    public Commit(String createMessage, List<String> parentCommits,
+                  String rootTree) {
+        message = createMessage;
+        timestamp = new Date();
+        parents = parentCommits;
+        tree = rootTree;
+    }
+
+    /** create a commit with every field given, as decoded. */
+    private Commit(String createMessage, Date createTimestamp,
+                   List<String> parentCommits, Map<String, String> blobMapping,
+                   String rootTree) {
+        message = createMessage;
+        timestamp = createTimestamp;
+        parents = parentCommits;
+        blobs = blobMapping;
+        tree = rootTree;
+    }
+
+    /** return a copy of this commit with other parents,
+     * used when rewriting history. */
+    public Commit withParents(List<String> newParents) {
+        return new Commit(message, timestamp, newParents, blobs, tree);
+    }
+
+    /** return a copy of this commit that points to the tree
+     * ROOTTREE instead of listing its blobs. */
+    public Commit withTree(String rootTree) {
+        return new Commit(message, timestamp, parents, null, rootTree);
+    }
+
+    /** encode this commit in the binary format:
+     *  version | varint timestamp (epoch millis) | message
+     *  | varint parent count | raw parent ids | raw root tree id
+     * where a string is a varint length and UTF-8 bytes. commits
+     * without a tree keep the flat format of version 1, which ends
+     *  | varint blob count | (file name | raw blob id) sorted by name
+     * instead of the tree id. the same commit always gives the same
+     * bytes, and so the same id. */
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                64 + message.length() + (tree != null ? 0 : getBlobs().size() * 48));
+        out.write(tree != null ? CODEC_VERSION : CODEC_VERSION_FLAT);
+        Delta.writeVarint(out, timestamp.getTime());
+        writeString(out, message);
+        Delta.writeVarint(out, parents.size());
+        for (String parent : parents) {
+            writeId(out, parent);
+        }
+        if (tree != null) {
+            writeId(out, tree);
+            return out.toByteArray();
+        }
+        Map<String, String> blobMapping = getBlobs();
+        String[] fileNames = blobMapping.keySet().toArray(new String[0]);
+        Arrays.sort(fileNames);
+        Delta.writeVarint(out, fileNames.length);
+        for (String fileName : fileNames) {
+            writeString(out, fileName);
+            writeId(out, blobMapping.get(fileName));
+        }
+        return out.toByteArray();
+    }
+
+    /** decode a commit from DATA, written either by toBytes or, in
+     * repositories from before the binary format, by Java serialization. */
+    public static Commit fromBytes(byte[] data) {
+        if (isSerialized(data)) {
+            return readObject(new ByteArrayInputStream(data), Commit.class);
+        }
+        if (data.length == 0
+                || (data[0] != CODEC_VERSION && data[0] != CODEC_VERSION_FLAT)) {
+            throw error("Unknown commit format.");
+        }
+        int[] pos = {1};
+        Date timestamp = new Date(Delta.readVarint(data, pos));
+        String message = readString(data, pos);
+        int parentCount = (int) Delta.readVarint(data, pos);
+        List<String> parents = new ArrayList<>(parentCount);
+        for (int i = 0; i < parentCount; i += 1) {
+            parents.add(readId(data, pos));
+        }
+        if (data[0] == CODEC_VERSION) {
+            return new Commit(message, timestamp, parents, null, readId(data, pos));
+        }
+        int blobCount = (int) Delta.readVarint(data, pos);
+        Map<String, String> blobs = new HashMap<>(blobCount * 2);
+        for (int i = 0; i < blobCount; i += 1) {
+            String fileName = readString(data, pos);
+            blobs.put(fileName, readId(data, pos));
+        }
+        return new Commit(message, timestamp, parents, blobs, null);
+    }
+
     /** check if a file is tracked in this commit. */
     public boolean isTracked(String filename) {
-        return blobs.containsKey(filename);
+        return getBlobs().containsKey(filename);
     }
 
     /** get the blob SHA1 of a file in this commit. */
     public String getBlobSHA1(String filename) {
-        return blobs.get(filename);
+        return getBlobs().get(filename);
     }
 
-    /** get the mapping of blobs in this commit. */
+    /** get the mapping of blobs in this commit.
+     * read-only, since commits are shared through the commit cache.
+     * for a commit with a tree, this is the flattened tree. */
     public Map<String, String> getBlobs() {
+        if (tree != null) {
+            return Tree.flatten(tree);
+        }
         if (blobs == null) {
             return new HashMap<>();
         }
-        return blobs;
+        return Collections.unmodifiableMap(blobs);
+    }
+
+    /** get the SHA1 of the root tree of this commit,
+     * or null if it lists its blobs directly. */
+    public String getTree() {
+        return tree;
     }
 
     /** get the first parent of this commit
@@ -117,4 +233,16 @@ public class Commit implements Serializable {
         System.out.println(message);
         System.out.println();
     }
+
+    /** print the fields of this commit, for DumpObj. */
+    @Override
+    public void dump() {
+        System.out.printf("message: %s%ntimestamp: %s%nparents: %s%n",
+                message, formatDate(timestamp), parents);
+        if (tree != null) {
+            System.out.printf("tree: %s%n", tree);
+        } else {
+            System.out.printf("blobs: %s%n", blobs);
+        }
+    }
 }
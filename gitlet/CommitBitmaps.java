@@ -0,0 +1,290 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/** An optional index of reachability bitmaps: for selected commits, the
+ *  set of all their ancestors (themselves included) as a bitmap over
+ *  CommitGraph positions. A walk that reaches a selected commit takes its
+ *  bitmap whole instead of going further down, so "which commits are
+ *  reachable from these heads" and "is X an ancestor of Y" are answered
+ *  with a few OR operations and short walks from the tips to the nearest
+ *  selected commits.
+ *
+ *  The selected commits are the branch heads and every commit whose
+ *  generation is a multiple of SPACING. Bitmaps are stored compressed
+ *  in an EWAH-style run-length encoding of 64-bit words; since parents
+ *  come before their children in the graph, the ancestors of a commit
+ *  are mostly one long run of ones and compress to a few words.
+ *
+ *  Layout (".gitlet/bitmaps"):
+ *      "GBMP" | version (int) | commits covered (int)
+ *      | SHA-1 of the raw ids of the covered commits, in graph order (20)
+ *      | number of bitmaps (int)
+ *      | (position (int) | number of words (int) | words (long)) each
+ *
+ *  Positions change if the commit graph is rebuilt, so the index is only
+ *  used while the covered part of the graph is unchanged; otherwise it
+ *  is ignored, and every query falls back to walking the graph. Commits
+ *  added since the index was written are walked until they reach covered
+ *  ones. `gitlet bitmaps` writes the index again.
+ *  @author BillyDu
+ */
+class CommitBitmaps {
+    /** The bitmap file. */
+    static final File BITMAP_FILE = join(Repository.GITLET_DIR, "bitmaps");
+
+    /** Magic number at the start of the file. */
+    private static final int MAGIC = 0x47424d50;
+    /** Format version of the file. */
+    private static final int VERSION = 1;
+    /** Commits whose generation is a multiple of this get a bitmap. */
+    static final int SPACING = 64;
+    /** Bit 0 of a marker word: the value of the words in its run. */
+    private static final long RUN_BIT = 1;
+    /** Bits 1 to 32 of a marker word: the number of words in its run. */
+    private static final int RUN_SHIFT = 1;
+    /** Bits 33 to 63 of a marker word: the number of literal words that
+     *  follow it. */
+    private static final int LITERAL_SHIFT = 33;
+    /** Largest run or literal count one marker word holds. */
+    private static final long MAX_COUNT = (1L << 31) - 1;
+
+    /** The compressed bitmaps by commit position, empty if there is no
+     *  valid index, or null if not loaded yet. */
+    private static Map<Integer, long[]> bitmaps;
+
+    /** Write bitmaps for the branch heads HEADS and for every commit whose
+     *  generation is a multiple of SPACING, replacing the index. Returns
+     *  the number of bitmaps written. */
+    static int write(Collection<Integer> heads) {
+        int count = CommitGraph.size();
+        BitSet selected = new BitSet(count);
+        for (int head : heads) {
+            selected.set(head);
+        }
+        for (int pos = 0; pos < count; pos += 1) {
+            if (CommitGraph.generation(pos) % SPACING == 0) {
+                selected.set(pos);
+            }
+        }
+
+        /** build them in graph order, so the bitmaps of a commit's
+         * nearest selected ancestors are ready when it is reached. */
+        Map<Integer, BitSet> built = new HashMap<>();
+        for (int pos = selected.nextSetBit(0); pos >= 0; pos = selected.nextSetBit(pos + 1)) {
+            built.put(pos, reachable(pos, built));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(36);
+        header.putInt(MAGIC).putInt(VERSION).putInt(count);
+        header.put(CommitGraph.fingerprint(count)).putInt(built.size());
+        out.writeBytes(header.array());
+        bitmaps = new HashMap<>();
+        for (int pos = selected.nextSetBit(0); pos >= 0; pos = selected.nextSetBit(pos + 1)) {
+            long[] words = compress(built.get(pos).toLongArray());
+            ByteBuffer entry = ByteBuffer.allocate(8 + 8 * words.length);
+            entry.putInt(pos).putInt(words.length);
+            for (long word : words) {
+                entry.putLong(word);
+            }
+            out.writeBytes(entry.array());
+            bitmaps.put(pos, words);
+        }
+        writeContents(BITMAP_FILE, (Object) out.toByteArray());
+        return built.size();
+    }
+
+    /** Return the positions of all commits reachable from the commits
+     *  at the positions TIPS, the tips included. */
+    static BitSet reachable(Collection<Integer> tips) {
+        load();
+        BitSet result = new BitSet(CommitGraph.size());
+        Deque<Integer> stack = new ArrayDeque<>(tips);
+        while (!stack.isEmpty()) {
+            int pos = stack.pop();
+            if (result.get(pos)) {
+                continue;
+            }
+            long[] bitmap = bitmaps.get(pos);
+            if (bitmap != null) {
+                result.or(decompress(bitmap));
+                continue;
+            }
+            result.set(pos);
+            pushParents(pos, stack);
+        }
+        return result;
+    }
+
+    /** Check if the commit at A is an ancestor of the commit at B, or is
+     *  B. The walk down from B uses a bitmap as soon as it meets one, and
+     *  never goes below the generation of A. */
+    static boolean isAncestor(int a, int b) {
+        load();
+        int generation = CommitGraph.generation(a);
+        BitSet visited = new BitSet(CommitGraph.size());
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(b);
+        while (!stack.isEmpty()) {
+            int pos = stack.pop();
+            if (pos == a) {
+                return true;
+            }
+            if (visited.get(pos) || CommitGraph.generation(pos) <= generation) {
+                continue;
+            }
+            visited.set(pos);
+            long[] bitmap = bitmaps.get(pos);
+            if (bitmap != null) {
+                if (decompress(bitmap).get(a)) {
+                    return true;
+                }
+                continue;
+            }
+            pushParents(pos, stack);
+        }
+        return false;
+    }
+
+    /** Return the number of bitmaps in the index, 0 if it is missing or
+     *  out of date. */
+    static int size() {
+        load();
+        return bitmaps.size();
+    }
+
+    /** Return the ancestors of the commit at POS, using the uncompressed
+     *  bitmaps BUILT of commits below it. */
+    private static BitSet reachable(int pos, Map<Integer, BitSet> built) {
+        BitSet result = new BitSet(pos + 1);
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(pos);
+        while (!stack.isEmpty()) {
+            int next = stack.pop();
+            if (result.get(next)) {
+                continue;
+            }
+            BitSet bitmap = built.get(next);
+            if (bitmap != null) {
+                result.or(bitmap);
+                continue;
+            }
+            result.set(next);
+            pushParents(next, stack);
+        }
+        return result;
+    }
+
+    /** Push the parents of the commit at POS onto STACK. */
+    private static void pushParents(int pos, Deque<Integer> stack) {
+        int first = CommitGraph.firstParent(pos);
+        int second = CommitGraph.secondParent(pos);
+        if (first >= 0) {
+            stack.push(first);
+        }
+        if (second >= 0) {
+            stack.push(second);
+        }
+    }
+
+    /** Load the index, or an empty one if it is missing or does not match
+     *  the commit graph. */
+    private static void load() {
+        if (bitmaps != null) {
+            return;
+        }
+        bitmaps = new HashMap<>();
+        if (!BITMAP_FILE.isFile()) {
+            return;
+        }
+        ByteBuffer data = ByteBuffer.wrap(readContents(BITMAP_FILE));
+        if (data.remaining() < 36 || data.getInt() != MAGIC || data.getInt() != VERSION) {
+            return;
+        }
+        int count = data.getInt();
+        byte[] fingerprint = new byte[20];
+        data.get(fingerprint);
+        if (count > CommitGraph.size()
+                || !MessageDigest.isEqual(fingerprint, CommitGraph.fingerprint(count))) {
+            return;
+        }
+        int entries = data.getInt();
+        for (int i = 0; i < entries; i += 1) {
+            int pos = data.getInt();
+            long[] words = new long[data.getInt()];
+            data.asLongBuffer().get(words);
+            data.position(data.position() + 8 * words.length);
+            bitmaps.put(pos, words);
+        }
+    }
+
+    /** Return WORDS compressed: a marker word, then the literal words it
+     *  counts, repeated. A marker gives the length and value of a run of
+     *  all-zero or all-one words, and how many literal words follow. */
+    static long[] compress(long[] words) {
+        long[] out = new long[2 * words.length + 1];
+        int size = 0;
+        int i = 0;
+        while (i < words.length) {
+            long runWord = words[i] == -1L ? -1L : 0L;
+            long run = 0;
+            while (i < words.length && words[i] == runWord && run < MAX_COUNT) {
+                run += 1;
+                i += 1;
+            }
+            int literalStart = i;
+            while (i < words.length && words[i] != 0L && words[i] != -1L
+                    && i - literalStart < MAX_COUNT) {
+                i += 1;
+            }
+            long literals = i - literalStart;
+            out[size] = (runWord == -1L ? RUN_BIT : 0)
+                    | (run << RUN_SHIFT) | (literals << LITERAL_SHIFT);
+            size += 1;
+            System.arraycopy(words, literalStart, out, size, (int) literals);
+            size += (int) literals;
+        }
+        long[] result = new long[size];
+        System.arraycopy(out, 0, result, 0, size);
+        return result;
+    }
+
+    /** Return the bitmap that COMPRESSED, from compress, encodes. */
+    static BitSet decompress(long[] compressed) {
+        int length = 0;
+        for (int i = 0; i < compressed.length; i += 1) {
+            long marker = compressed[i];
+            long literals = marker >>> LITERAL_SHIFT;
+            length += (int) ((marker >>> RUN_SHIFT) & MAX_COUNT) + (int) literals;
+            i += (int) literals;
+        }
+        long[] words = new long[length];
+        int size = 0;
+        for (int i = 0; i < compressed.length; i += 1) {
+            long marker = compressed[i];
+            int run = (int) ((marker >>> RUN_SHIFT) & MAX_COUNT);
+            int literals = (int) (marker >>> LITERAL_SHIFT);
+            if ((marker & RUN_BIT) != 0) {
+                Arrays.fill(words, size, size + run, -1L);
+            }
+            size += run;
+            System.arraycopy(compressed, i + 1, words, size, literals);
+            size += literals;
+            i += literals;
+        }
+        return BitSet.valueOf(words);
+    }
+}
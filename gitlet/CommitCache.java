@@ -0,0 +1,89 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A bounded in-process cache of deserialized commits, keyed by SHA-1.
+ *  A commit never changes once it is written, so entries are only ever
+ *  evicted, never invalidated. The least recently used commit goes first
+ *  once the cache holds more than MAX_ENTRIES commits or an estimated
+ *  MAX_BYTES bytes.
+ *  @author BillyDu
+ */
+class CommitCache {
+    /** Most commits kept. */
+    static final int MAX_ENTRIES = 4096;
+    /** Upper bound on the estimated bytes of the commits kept. */
+    static final long MAX_BYTES = 16 << 20;
+
+    /** Cached commits, least recently used first. */
+    private static final LinkedHashMap<String, Commit> commits =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /** Estimated size of the commits in the cache. */
+    private static long bytes;
+    /** Number of lookups that found their commit. */
+    private static long hits;
+    /** Number of lookups that did not. */
+    private static long misses;
+
+    /** Return the commit SHA1 if it is cached, or null. */
+    static Commit get(String sha1) {
+        Commit commit = commits.get(sha1);
+        if (commit == null) {
+            misses += 1;
+        } else {
+            hits += 1;
+        }
+        return commit;
+    }
+
+    /** Cache COMMIT under SHA1, evicting old entries as needed. */
+    static void put(String sha1, Commit commit) {
+        long size = estimateSize(commit);
+        if (size > MAX_BYTES) {
+            return;
+        }
+        Commit old = commits.put(sha1, commit);
+        if (old != null) {
+            bytes -= estimateSize(old);
+        }
+        bytes += size;
+        Iterator<Map.Entry<String, Commit>> it = commits.entrySet().iterator();
+        while (commits.size() > MAX_ENTRIES || bytes > MAX_BYTES) {
+            bytes -= estimateSize(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    /** Return the number of lookups that found their commit. */
+    static long hits() {
+        return hits;
+    }
+
+    /** Return the number of lookups that did not. */
+    static long misses() {
+        return misses;
+    }
+
+    /** Return a rough count of the bytes COMMIT takes on the heap: the
+     *  strings it holds, at two bytes a character, plus a fixed overhead
+     *  for each object and map entry. The files of a commit with a tree
+     *  are not held by the commit and so not counted. */
+    private static long estimateSize(Commit commit) {
+        long size = 128 + 2L * commit.getMessage().length();
+        if (commit.getFirstParent() != null) {
+            size += 64 + 2L * Utils.UID_LENGTH;
+        }
+        if (commit.getSecondParent() != null) {
+            size += 64 + 2L * Utils.UID_LENGTH;
+        }
+        if (commit.getTree() != null) {
+            return size + 64 + 2L * Utils.UID_LENGTH;
+        }
+        for (Map.Entry<String, String> entry : commit.getBlobs().entrySet()) {
+            size += 128 + 2L * (entry.getKey().length() + entry.getValue().length());
+        }
+        return size;
+    }
+}
@@ -0,0 +1,391 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static gitlet.Utils.*;
+
+/** The shape of the history: for every commit, its parents, generation
+ *  number, timestamp and root tree, in fixed-width records that are read
+ *  straight out of a memory-mapped file. Walks over the history use this
+ *  instead of decoding commits, and load a Commit only for what they
+ *  print or diff.
+ *
+ *  Layout (".gitlet/commit-graph"):
+ *      "GCGR" | version (int)
+ *      records of RECORD_LENGTH bytes, one per commit:
+ *          raw commit id (20) | raw root tree id (20, zero if none)
+ *          | first parent (int) | second parent (int)
+ *          | generation (int) | timestamp in epoch millis (long)
+ *
+ *  A commit is referred to by its position, the index of its record.
+ *  Parents are positions too, -1 if absent, and always come before their
+ *  children, so every walk towards the root moves to smaller positions.
+ *  The generation of a root commit is 1, and of any other commit one more
+ *  than that of its highest parent, so a commit can only be an ancestor
+ *  of commits with a larger generation.
+ *
+ *  Each new commit is appended as one record. A missing or damaged file,
+ *  or one that lacks the parent of a new commit, is rebuilt from all the
+ *  commits in CommitIndex.
+ *  @author BillyDu
+ */
+class CommitGraph {
+    /** The graph file. */
+    static final File GRAPH_FILE = join(Repository.GITLET_DIR, "commit-graph");
+
+    /** Magic number at the start of the graph. */
+    private static final int MAGIC = 0x47434752;
+    /** Format version of the graph. */
+    private static final int VERSION = 1;
+    /** Length of the fixed header. */
+    private static final int HEADER_LENGTH = 8;
+    /** Length of a raw id. */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Length of one record. */
+    private static final int RECORD_LENGTH = 2 * ID_BYTES + 3 * 4 + 8;
+    /** Offsets of the fields within a record. */
+    private static final int TREE = ID_BYTES;
+    private static final int FIRST_PARENT = 2 * ID_BYTES;
+    private static final int SECOND_PARENT = FIRST_PARENT + 4;
+    private static final int GENERATION = SECOND_PARENT + 4;
+    private static final int TIMESTAMP = GENERATION + 4;
+    /** The all-zero id stored for a commit without a tree. */
+    private static final String ZERO_ID = "0".repeat(UID_LENGTH);
+
+    /** Flags painted on commits by mergeBases: reachable from the first
+     *  commit, reachable from the second, below a common ancestor, and
+     *  found to be a merge base. */
+    private static final int PARENT1 = 1;
+    private static final int PARENT2 = 2;
+    private static final int STALE = 4;
+    private static final int RESULT = 8;
+
+    /** The mapped records, or null if they must be mapped again. */
+    private static ByteBuffer records;
+    /** Number of records. */
+    private static int count;
+    /** Position of every commit by id, or null if not loaded yet. */
+    private static Map<String, Integer> positions;
+
+    /** Record COMMIT, whose id is SHA1 and which must already be stored
+     *  and in CommitIndex. */
+    static void add(String sha1, Commit commit) {
+        load();
+        if (positions.containsKey(sha1)) {
+            return;
+        }
+        int first = parentPosition(commit.getFirstParent());
+        int second = parentPosition(commit.getSecondParent());
+        if (first == -2 || second == -2) {
+            /** a parent from before the graph existed. */
+            rebuild();
+            return;
+        }
+        ByteBuffer record = encode(sha1, commit, first, second);
+        try {
+            Files.write(GRAPH_FILE.toPath(), record.array(), StandardOpenOption.APPEND);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        positions.put(sha1, count);
+        count += 1;
+        records = null;
+    }
+
+    /** Return the position of the commit SHA1. */
+    static int position(String sha1) {
+        load();
+        Integer pos = positions.get(sha1);
+        if (pos == null) {
+            /** written by something that did not keep the graph up to
+             * date; give it one more chance. */
+            rebuild();
+            pos = positions.get(sha1);
+            if (pos == null) {
+                throw error("No commit with that id exists.");
+            }
+        }
+        return pos;
+    }
+
+    /** Return the number of commits in the graph. */
+    static int size() {
+        load();
+        return count;
+    }
+
+    /** Return the id of the commit at POS. */
+    static String id(int pos) {
+        return readId(pos, 0);
+    }
+
+    /** Return the root tree of the commit at POS, or null if it has none. */
+    static String tree(int pos) {
+        String tree = readId(pos, TREE);
+        return tree.equals(ZERO_ID) ? null : tree;
+    }
+
+    /** Return the position of the first parent of the commit at POS, or
+     *  -1 if it has none. */
+    static int firstParent(int pos) {
+        return records().getInt(pos * RECORD_LENGTH + FIRST_PARENT);
+    }
+
+    /** Return the position of the second parent of the commit at POS, or
+     *  -1 if it has none. */
+    static int secondParent(int pos) {
+        return records().getInt(pos * RECORD_LENGTH + SECOND_PARENT);
+    }
+
+    /** Return the generation number of the commit at POS. */
+    static int generation(int pos) {
+        return records().getInt(pos * RECORD_LENGTH + GENERATION);
+    }
+
+    /** Return the timestamp of the commit at POS, in epoch millis. */
+    static long timestamp(int pos) {
+        return records().getLong(pos * RECORD_LENGTH + TIMESTAMP);
+    }
+
+    /** Return the best common ancestors of the commits at A and B: those
+     *  that are not ancestors of another common ancestor. There is more
+     *  than one only in criss-cross histories, and they come in the order
+     *  of compareNewerFirst, best first.
+     *
+     *  Both sides are walked together from a priority queue that always
+     *  takes the commit with the highest generation next, painting each
+     *  commit with the sides it is reachable from. A commit reachable from
+     *  both is a common ancestor, and everything below it is painted
+     *  STALE. Since an ancestor always has a lower generation than its
+     *  descendants, a commit is taken only after all of its descendants
+     *  in the walk, so a common ancestor found later cannot be above one
+     *  found earlier. The walk stops once every queued commit is STALE,
+     *  as none of them can be a better common ancestor, so only the part
+     *  of the history above the merge bases is read. */
+    static List<Integer> mergeBases(int a, int b) {
+        List<Integer> result = new ArrayList<>();
+        if (a == b) {
+            result.add(a);
+            return result;
+        }
+        Map<Integer, Integer> flags = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(CommitGraph::compareNewerFirst);
+        flags.put(a, PARENT1);
+        flags.put(b, PARENT2);
+        queue.add(a);
+        queue.add(b);
+
+        while (hasNonStale(queue, flags)) {
+            int pos = queue.poll();
+            int paint = flags.get(pos) & (PARENT1 | PARENT2 | STALE);
+            if (paint == (PARENT1 | PARENT2)) {
+                if ((flags.get(pos) & RESULT) == 0) {
+                    flags.put(pos, flags.get(pos) | RESULT);
+                    result.add(pos);
+                }
+                paint |= STALE;
+            }
+            for (int parent : new int[] {firstParent(pos), secondParent(pos)}) {
+                if (parent < 0) {
+                    continue;
+                }
+                int old = flags.getOrDefault(parent, 0);
+                if ((old & paint) != paint) {
+                    flags.put(parent, old | paint);
+                    queue.add(parent);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Compare the commits at X and Y so that the one with the higher
+     *  generation, then the later timestamp, then the later position,
+     *  comes first. */
+    static int compareNewerFirst(int x, int y) {
+        int cmp = Integer.compare(generation(y), generation(x));
+        if (cmp == 0) {
+            cmp = Long.compare(timestamp(y), timestamp(x));
+        }
+        return cmp != 0 ? cmp : Integer.compare(y, x);
+    }
+
+    /** Check if QUEUE holds a commit that FLAGS does not mark STALE. */
+    private static boolean hasNonStale(PriorityQueue<Integer> queue,
+                                       Map<Integer, Integer> flags) {
+        for (int pos : queue) {
+            if ((flags.get(pos) & STALE) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the SHA-1 of the raw ids of the first COUNT commits, in
+     *  graph order, which changes if any of their positions does. */
+    static byte[] fingerprint(int count) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] id = new byte[ID_BYTES];
+            for (int pos = 0; pos < count; pos += 1) {
+                records().get(pos * RECORD_LENGTH, id);
+                md.update(id);
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Return the id stored at OFFSET in the record of POS. */
+    private static String readId(int pos, int offset) {
+        byte[] id = new byte[ID_BYTES];
+        records().get(pos * RECORD_LENGTH + offset, id);
+        return bytesToSha1(id, 0, ID_BYTES);
+    }
+
+    /** Return the position of the parent PARENT, -1 if PARENT is null,
+     *  or -2 if it is not in the graph. */
+    private static int parentPosition(String parent) {
+        if (parent == null) {
+            return -1;
+        }
+        Integer pos = positions.get(parent);
+        return pos == null ? -2 : pos;
+    }
+
+    /** Return the record of COMMIT, whose id is SHA1 and whose parents
+     *  are at FIRST and SECOND. */
+    private static ByteBuffer encode(String sha1, Commit commit, int first, int second) {
+        int generation = 1;
+        if (first >= 0) {
+            generation = Math.max(generation, generation(first) + 1);
+        }
+        if (second >= 0) {
+            generation = Math.max(generation, generation(second) + 1);
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+        record.put(sha1ToBytes(sha1));
+        record.put(sha1ToBytes(commit.getTree() != null ? commit.getTree() : ZERO_ID));
+        record.putInt(first).putInt(second).putInt(generation);
+        record.putLong(commit.getTimestamp().getTime());
+        return record;
+    }
+
+    /** Return the mapped records, mapping them again if commits were
+     *  appended since. */
+    private static ByteBuffer records() {
+        load();
+        if (records == null) {
+            try (RandomAccessFile file = new RandomAccessFile(GRAPH_FILE, "r")) {
+                records = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_LENGTH, (long) count * RECORD_LENGTH);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return records;
+    }
+
+    /** Load the graph, rebuilding it if it is missing or damaged. */
+    private static void load() {
+        if (positions != null) {
+            return;
+        }
+        if (!GRAPH_FILE.isFile() || !read()) {
+            rebuild();
+        }
+    }
+
+    /** Read the graph file. Returns false if it is not a valid graph. */
+    private static boolean read() {
+        long length = GRAPH_FILE.length();
+        if (length < HEADER_LENGTH || (length - HEADER_LENGTH) % RECORD_LENGTH != 0) {
+            /** an interrupted append leaves a partial record. */
+            return false;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(GRAPH_FILE, "r")) {
+            if (file.readInt() != MAGIC || file.readInt() != VERSION) {
+                return false;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        count = (int) ((length - HEADER_LENGTH) / RECORD_LENGTH);
+        records = null;
+        positions = new HashMap<>(count * 2);
+        for (int pos = 0; pos < count; pos += 1) {
+            positions.put(id(pos), pos);
+        }
+        return true;
+    }
+
+    /** Write the graph again from every commit in CommitIndex, parents
+     *  before children. Positions change, so this is also how commits
+     *  removed from the index leave the graph. */
+    static void rebuild() {
+        List<String> ids = CommitIndex.withPrefix("");
+        Map<String, Integer> order = new HashMap<>(ids.size() * 2);
+        ByteBuffer data = ByteBuffer.allocate(HEADER_LENGTH + ids.size() * RECORD_LENGTH);
+        data.putInt(MAGIC).putInt(VERSION);
+
+        /** number the commits in depth-first post-order, with an
+         * explicit stack so long histories do not overflow it. */
+        count = 0;
+        positions = order;
+        records = data.slice(HEADER_LENGTH, ids.size() * RECORD_LENGTH);
+        for (String root : ids) {
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                String sha1 = stack.peek();
+                if (order.containsKey(sha1)) {
+                    stack.pop();
+                    continue;
+                }
+                Commit commit = Repository.getCommitBySHA1(sha1);
+                int first = parentPosition(commit.getFirstParent());
+                int second = parentPosition(commit.getSecondParent());
+                if (first == -2 || second == -2) {
+                    if (first == -2) {
+                        stack.push(commit.getFirstParent());
+                    }
+                    if (second == -2) {
+                        stack.push(commit.getSecondParent());
+                    }
+                    continue;
+                }
+                stack.pop();
+                data.put(encode(sha1, commit, first, second).array());
+                order.put(sha1, count);
+                count += 1;
+            }
+        }
+
+        File tmp = join(Repository.GITLET_DIR, "commit-graph.tmp");
+        writeContents(tmp, (Object) data.array());
+        try {
+            Files.move(tmp.toPath(), GRAPH_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        records = null;
+    }
+}
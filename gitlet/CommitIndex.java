@@ -0,0 +1,263 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** A sorted index of the ids of all commits in a repository, so that an
+ *  abbreviated commit id is resolved with a binary search instead of by
+ *  probing every object, blobs included, that shares its first digits.
+ *
+ *  Layout (".gitlet/commit-index"):
+ *      "GCIX" | version (int) | number of sorted ids (int)
+ *      sorted ids: 20 raw bytes each
+ *      appended ids: 20 raw bytes each, in the order they were added
+ *
+ *  Each new commit is appended to the end of the file, which is one
+ *  small write. Once MAX_APPENDED ids are waiting unsorted, the next one
+ *  rewrites the file with every id sorted. A missing or damaged index is
+ *  rebuilt from the object store.
+ *  @author BillyDu
+ */
+class CommitIndex {
+    /** The index file. */
+    static final File INDEX_FILE = join(Repository.GITLET_DIR, "commit-index");
+
+    /** Magic number at the start of the index. */
+    private static final int MAGIC = 0x47434958;
+    /** Format version of the index. */
+    private static final int VERSION = 1;
+    /** Length of the fixed header. */
+    private static final int HEADER_LENGTH = 12;
+    /** Length of a raw commit id. */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Most ids kept unsorted at the end of the index. */
+    private static final int MAX_APPENDED = 256;
+
+    /** The mapped sorted ids, or null if the index is not loaded yet. */
+    private static ByteBuffer sorted;
+    /** Number of ids in sorted. */
+    private static int sortedCount;
+    /** The ids appended after the sorted ones. */
+    private static TreeSet<String> appended;
+
+    /** Record the commit SHA1, which must already be stored. */
+    static void add(String sha1) {
+        if (!load() || contains(sha1)) {
+            /** a freshly rebuilt index already has it. */
+            return;
+        }
+        if (appended.size() >= MAX_APPENDED) {
+            List<String> ids = allIds();
+            ids.add(sha1);
+            ids.sort(null);
+            write(ids);
+            return;
+        }
+        try {
+            Files.write(INDEX_FILE.toPath(), sha1ToBytes(sha1),
+                    StandardOpenOption.APPEND);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        appended.add(sha1);
+    }
+
+    /** Check if SHA1 is the id of a commit. */
+    static boolean contains(String sha1) {
+        load();
+        int pos = lowerBound(sha1);
+        return (pos < sortedCount && idAt(pos).equals(sha1))
+                || appended.contains(sha1);
+    }
+
+    /** Drop the ids of commits that are no longer stored, as after gc.
+     *  Returns the number of ids dropped. */
+    static int prune() {
+        load();
+        List<String> ids = allIds();
+        int before = ids.size();
+        ids.removeIf(sha1 -> !ObjectStore.contains(sha1));
+        if (ids.size() < before) {
+            ids.sort(null);
+            write(ids);
+        }
+        return before - ids.size();
+    }
+
+    /** Return the ids of all commits starting with the hexadecimal PREFIX,
+     *  in sorted order. */
+    static List<String> withPrefix(String prefix) {
+        load();
+        TreeSet<String> result = new TreeSet<>();
+        for (int i = lowerBound(prefix); i < sortedCount; i += 1) {
+            String id = idAt(i);
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            result.add(id);
+        }
+        for (String id : appended.tailSet(prefix)) {
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            result.add(id);
+        }
+        return new ArrayList<>(result);
+    }
+
+    /** Return the length of the shortest prefix of the commit SHA1 that no
+     *  other commit shares, but at least MINLENGTH. */
+    static int uniquePrefixLength(String sha1, int minLength) {
+        load();
+        List<String> neighbours = new ArrayList<>();
+        int pos = lowerBound(sha1);
+        if (pos > 0) {
+            neighbours.add(idAt(pos - 1));
+        }
+        if (pos < sortedCount && idAt(pos).equals(sha1)) {
+            pos += 1;
+        }
+        if (pos < sortedCount) {
+            neighbours.add(idAt(pos));
+        }
+        neighbours.add(appended.lower(sha1));
+        neighbours.add(appended.higher(sha1));
+
+        /** only the ids right next to SHA1 in sorted order can share
+         * the longest prefix with it. */
+        int length = minLength;
+        for (String other : neighbours) {
+            if (other == null) {
+                continue;
+            }
+            int common = 0;
+            while (common < UID_LENGTH && other.charAt(common) == sha1.charAt(common)) {
+                common += 1;
+            }
+            length = Math.max(length, common + 1);
+        }
+        return Math.min(length, UID_LENGTH);
+    }
+
+    /** Load the index, rebuilding it if it is missing or damaged.
+     *  Returns false if it had to be rebuilt. */
+    private static boolean load() {
+        if (sorted != null) {
+            return true;
+        }
+        if (INDEX_FILE.isFile() && read()) {
+            return true;
+        }
+        List<String> ids = new ArrayList<>();
+        addCommits(ids, ObjectStore.looseIds());
+        addCommits(ids, ObjectStore.packedIds());
+        ids.sort(null);
+        write(ids);
+        return false;
+    }
+
+    /** Add the commits among the object ids CANDIDATES to IDS. */
+    private static void addCommits(List<String> ids, Collection<String> candidates) {
+        for (String sha1 : candidates) {
+            if (Repository.isCommit(sha1)) {
+                ids.add(sha1);
+            }
+        }
+    }
+
+    /** Map the index file. Returns false if it is not a valid index. */
+    private static boolean read() {
+        ByteBuffer data;
+        try (RandomAccessFile file = new RandomAccessFile(INDEX_FILE, "r")) {
+            data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (data.capacity() < HEADER_LENGTH || data.getInt(0) != MAGIC
+                || data.getInt(4) != VERSION) {
+            return false;
+        }
+        int count = data.getInt(8);
+        long sortedEnd = HEADER_LENGTH + (long) count * ID_BYTES;
+        if (count < 0 || sortedEnd > data.capacity()) {
+            return false;
+        }
+        sortedCount = count;
+        sorted = data.slice(HEADER_LENGTH, count * ID_BYTES);
+
+        /** a partial id at the very end is the trace of an interrupted
+         * append and is ignored. */
+        appended = new TreeSet<>();
+        for (int pos = (int) sortedEnd; pos + ID_BYTES <= data.capacity(); pos += ID_BYTES) {
+            byte[] id = new byte[ID_BYTES];
+            data.get(pos, id);
+            appended.add(bytesToSha1(id, 0, ID_BYTES));
+        }
+        return true;
+    }
+
+    /** Replace the index with one holding the sorted commit ids IDS. */
+    private static void write(List<String> ids) {
+        ByteBuffer data = ByteBuffer.allocate(HEADER_LENGTH + ids.size() * ID_BYTES);
+        data.putInt(MAGIC).putInt(VERSION).putInt(ids.size());
+        for (String id : ids) {
+            data.put(sha1ToBytes(id));
+        }
+        File tmp = join(Repository.GITLET_DIR, "commit-index.tmp");
+        writeContents(tmp, (Object) data.array());
+        try {
+            Files.move(tmp.toPath(), INDEX_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        sortedCount = ids.size();
+        sorted = ByteBuffer.wrap(data.array(), HEADER_LENGTH, ids.size() * ID_BYTES).slice();
+        appended = new TreeSet<>();
+    }
+
+    /** Return every id in the index. */
+    private static List<String> allIds() {
+        List<String> ids = new ArrayList<>(sortedCount + appended.size());
+        for (int i = 0; i < sortedCount; i += 1) {
+            ids.add(idAt(i));
+        }
+        ids.addAll(appended);
+        return ids;
+    }
+
+    /** Return the I-th sorted id. */
+    private static String idAt(int i) {
+        byte[] id = new byte[ID_BYTES];
+        sorted.get(i * ID_BYTES, id);
+        return bytesToSha1(id, 0, ID_BYTES);
+    }
+
+    /** Return the position of the first sorted id that is not less than
+     *  the hexadecimal string KEY. */
+    private static int lowerBound(String key) {
+        int lo = 0;
+        int hi = sortedCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (idAt(mid).compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,178 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static gitlet.Utils.*;
+
+/** Copy/insert deltas between two versions of a file.
+ *  A delta is a sequence of instructions that rebuild a target from a
+ *  base:
+ *      varint base length | varint target length | instructions
+ *  where each instruction is either
+ *      0x80 | varint offset | varint length   copy a range of the base
+ *      n (1..127) | n bytes                    insert literal bytes
+ *
+ *  Deltas are found like git's diff-delta: the base is indexed by the
+ *  hash of each aligned BLOCK-byte block, then a rolling hash slides over
+ *  the target one byte at a time and every hit is verified and extended.
+ *  @author BillyDu
+ */
+class Delta {
+    /** Size of the blocks indexed in the base. */
+    private static final int BLOCK = 16;
+    /** Multiplier of the rolling hash. */
+    private static final int PRIME = 31;
+    /** PRIME to the power BLOCK - 1, used to drop the leaving byte. */
+    private static final int TOP;
+    /** Longest literal run of one insert instruction. */
+    private static final int MAX_INSERT = 127;
+    /** Copy instruction marker. */
+    private static final int COPY = 0x80;
+
+    static {
+        int top = 1;
+        for (int i = 1; i < BLOCK; i += 1) {
+            top *= PRIME;
+        }
+        TOP = top;
+    }
+
+    /** Return a delta that rebuilds TARGET from BASE. */
+    static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 4 + 16);
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        /** index every aligned block of the base in an open-addressed
+         * table; later blocks overwrite earlier ones with the same hash. */
+        int blocks = base.length / BLOCK;
+        int tableSize = Integer.highestOneBit(Math.max(blocks, 1) * 2) * 2;
+        int[] table = new int[tableSize];
+        Arrays.fill(table, -1);
+        for (int b = 0; b < blocks; b += 1) {
+            int h = hash(base, b * BLOCK);
+            table[h & (tableSize - 1)] = b * BLOCK;
+        }
+
+        int pending = 0;
+        int pos = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (pos + BLOCK <= target.length) {
+            int candidate = table[h & (tableSize - 1)];
+            if (candidate >= 0 && regionEquals(base, candidate, target, pos, BLOCK)) {
+                /** extend the match backwards over the pending literals,
+                 * then forwards as far as the two sides agree. */
+                int start = candidate;
+                int tstart = pos;
+                while (start > 0 && tstart > pending
+                        && base[start - 1] == target[tstart - 1]) {
+                    start -= 1;
+                    tstart -= 1;
+                }
+                int end = candidate + BLOCK;
+                int tend = pos + BLOCK;
+                while (end < base.length && tend < target.length
+                        && base[end] == target[tend]) {
+                    end += 1;
+                    tend += 1;
+                }
+                writeInserts(out, target, pending, tstart);
+                out.write(COPY);
+                writeVarint(out, start);
+                writeVarint(out, end - start);
+                pos = tend;
+                pending = tend;
+                if (pos + BLOCK <= target.length) {
+                    h = hash(target, pos);
+                }
+                continue;
+            }
+            if (pos + BLOCK < target.length) {
+                h = (h - TOP * target[pos]) * PRIME + target[pos + BLOCK];
+            }
+            pos += 1;
+        }
+        writeInserts(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /** Return the target rebuilt by applying DELTA to BASE. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        long baseLength = readVarint(delta, pos);
+        long targetLength = readVarint(delta, pos);
+        if (baseLength != base.length) {
+            throw error("Delta does not match its base.");
+        }
+        byte[] result = new byte[(int) targetLength];
+        int filled = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]] & 0xff;
+            pos[0] += 1;
+            if (op == COPY) {
+                int offset = (int) readVarint(delta, pos);
+                int length = (int) readVarint(delta, pos);
+                System.arraycopy(base, offset, result, filled, length);
+                filled += length;
+            } else {
+                System.arraycopy(delta, pos[0], result, filled, op);
+                pos[0] += op;
+                filled += op;
+            }
+        }
+        if (filled != result.length) {
+            throw error("Corrupt delta.");
+        }
+        return result;
+    }
+
+    /** Return the hash of the BLOCK bytes of DATA starting at START. */
+    private static int hash(byte[] data, int start) {
+        int h = 0;
+        for (int i = start; i < start + BLOCK; i += 1) {
+            h = h * PRIME + data[i];
+        }
+        return h;
+    }
+
+    /** Check if the LEN bytes of A at I equal those of B at J. */
+    private static boolean regionEquals(byte[] a, int i, byte[] b, int j, int len) {
+        return Arrays.equals(a, i, i + len, b, j, j + len);
+    }
+
+    /** Write the bytes of TARGET in [FROM, TO) as insert instructions. */
+    private static void writeInserts(ByteArrayOutputStream out, byte[] target,
+                                     int from, int to) {
+        while (from < to) {
+            int n = Math.min(MAX_INSERT, to - from);
+            out.write(n);
+            out.write(target, from, n);
+            from += n;
+        }
+    }
+
+    /** Write the non-negative VALUE to OUT as a base-128 varint. */
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Read a base-128 varint from DATA at POS[0], advancing POS[0]. */
+    static long readVarint(byte[] data, int[] pos) {
+        long result = 0;
+        int shift = 0;
+        while (true) {
+            int b = data[pos[0]] & 0xff;
+            pos[0] += 1;
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package gitlet;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 
 /** A debugging class whose main program may be invoked as follows:
  *      java gitlet.DumpObj FILE...
  *  where each FILE is a file produced by Utils.writeObject (or any file
- *  containing a serialized object).  This will simply read FILE,
+ *  containing a serialized object, compressed or not, such as the files
+ *  under .gitlet/objects).  This will simply read FILE,
  *  deserialize it, and call the dump method on the resulting Object.
  *  The object must implement the gitlet.Dumpable interface for this
  *  to work.  For example, you might define your class like this:
@@ -24,7 +27,9 @@ import java.io.File;
  *        }
  *
  *  As illustrated, your dump method should print useful information from
- *  objects of your class.
+ *  objects of your class. Objects under .gitlet/objects are recognized by
+ *  their header: commits are decoded from the binary format, and only the
+ *  type and length of blobs and trees are printed.
  *  @author P. N. Hilfinger
  */
 public class DumpObj {
@@ -33,9 +38,24 @@ public class DumpObj {
      *  in FILES. */
     public static void main(String... files) {
         for (String fileName : files) {
-            Dumpable obj = Utils.readObject(new File(fileName),
-                                            Dumpable.class);
-            obj.dump();
+            File file = new File(fileName);
+            ObjectStore.Type type = ObjectStore.typeOfFile(file);
+            if (type == ObjectStore.Type.BLOB || type == ObjectStore.Type.CHUNK
+                    || type == ObjectStore.Type.TREE) {
+                long length = ObjectStore.readHeader(file).length;
+                System.out.printf("type: %s%nlength: %s%n",
+                    type.name().toLowerCase(), length < 0 ? "unknown" : length);
+            } else if (type == ObjectStore.Type.COMMIT) {
+                try (InputStream in = ObjectStore.openFile(file)) {
+                    Commit.fromBytes(in.readAllBytes()).dump();
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            } else {
+                Dumpable obj = Utils.readObject(
+                    ObjectStore.openFile(file), Dumpable.class);
+                obj.dump();
+            }
             System.out.println("---");
         }
     }
@@ -31,8 +31,9 @@ public class GitletIgnore {
         }
     }
 
-    /** Check if a file is ignored. */
+    /** Check if a file is ignored, by its path or by its own name. */
     public boolean isIgnored(String filename) {
-        return ignoredFiles.contains(filename);
+        return ignoredFiles.contains(filename)
+                || ignoredFiles.contains(filename.substring(filename.lastIndexOf('/') + 1));
     }
 }
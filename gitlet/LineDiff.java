@@ -0,0 +1,555 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Line diffs between versions of a file.
+ *  Texts are split into lines (each keeping its '\n') and every distinct
+ *  line is interned to a small int through one open-addressed table
+ *  shared by all the texts being compared, so the diff itself only
+ *  compares ints and never looks at line contents again.
+ *
+ *  The diff is Myers' O(ND) algorithm in its linear-space form: find the
+ *  middle snake of the shortest edit script from both ends at once, then
+ *  recurse on the two halves. Common prefixes and suffixes are stripped
+ *  before each step.
+ *
+ *  The histogram variant, after jgit's HistogramDiff, is the patience
+ *  idea with repeats allowed: it anchors each region at the longest run
+ *  of common lines around the line rarest in the old side, and recurses
+ *  on both sides of the anchor. It falls back to Myers on regions whose
+ *  common lines all occur more than MAX_CHAIN times. Its edits follow
+ *  unique lines such as function headers, which often reads better.
+ *  @author BillyDu
+ */
+class LineDiff {
+    /** Bytes looked at to decide whether a file is binary, like git. */
+    private static final int BINARY_PROBE = 8000;
+    /** Lines occurring more often than this in a region are not used as
+     *  anchors by the histogram diff. */
+    private static final int MAX_CHAIN = 64;
+    /** Marks a line without a newline at the end of a file, in a unified
+     *  diff. */
+    private static final byte[] NO_NEWLINE =
+            "\n\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8);
+
+    /** A text split into lines. */
+    static class Lines {
+        /** The whole text. */
+        final byte[] data;
+        /** Offset of each line in DATA, and DATA's length at the end. */
+        final int[] starts;
+        /** Interned id of each line; equal lines have equal ids. */
+        final int[] ids;
+
+        /** Hash of each line. */
+        private final int[] hashes;
+
+        /** Split DATA into lines, hashing each on the way. */
+        private Lines(byte[] data) {
+            this.data = data;
+            int[] lineStarts = new int[data.length / 32 + 2];
+            int[] lineHashes = new int[lineStarts.length];
+            int count = 0;
+            int start = 0;
+            int h = 0;
+            for (int i = 0; i < data.length; i += 1) {
+                byte b = data[i];
+                h = 31 * h + b;
+                if (b == '\n' || i == data.length - 1) {
+                    if (count + 2 > lineStarts.length) {
+                        lineStarts = Arrays.copyOf(lineStarts, 2 * lineStarts.length);
+                        lineHashes = Arrays.copyOf(lineHashes, 2 * lineHashes.length);
+                    }
+                    lineStarts[count] = start;
+                    lineHashes[count] = h ^ (h >>> 16);
+                    count += 1;
+                    start = i + 1;
+                    h = 0;
+                }
+            }
+            lineStarts[count] = data.length;
+            starts = Arrays.copyOf(lineStarts, count + 1);
+            hashes = lineHashes;
+            ids = new int[count];
+        }
+
+        /** Return the number of lines. */
+        int size() {
+            return ids.length;
+        }
+
+        /** Check if line I equals line J of OTHER. */
+        private boolean sameLine(int i, Lines other, int j) {
+            return Arrays.equals(data, starts[i], starts[i + 1],
+                    other.data, other.starts[j], other.starts[j + 1]);
+        }
+    }
+
+    /** A region that differs: lines [aStart, aEnd) of the old text are
+     *  replaced by lines [bStart, bEnd) of the new one. */
+    static class Edit {
+        final int aStart;
+        final int aEnd;
+        final int bStart;
+        final int bEnd;
+
+        Edit(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    /** Split each of TEXTS into lines, with ids interned across all of
+     *  them. */
+    static Lines[] split(byte[]... texts) {
+        Lines[] result = new Lines[texts.length];
+        int total = 0;
+        for (int t = 0; t < texts.length; t += 1) {
+            result[t] = new Lines(texts[t]);
+            total += result[t].size();
+        }
+
+        /** each slot of the table packs the hash of a line above its id
+         * plus one (0 for an empty slot), so a probe is one memory read
+         * and only reads line contents when the hashes match. each id
+         * remembers one of its lines. */
+        int tableSize = Integer.highestOneBit(Math.max(total, 1) * 2) * 2;
+        long[] table = new long[tableSize];
+        int[] idText = new int[total];
+        int[] idLine = new int[total];
+        int ids = 0;
+        for (int t = 0; t < result.length; t += 1) {
+            Lines lines = result[t];
+            for (int i = 0; i < lines.size(); i += 1) {
+                int h = lines.hashes[i];
+                int slot = h & (tableSize - 1);
+                int id = -1;
+                while (table[slot] != 0) {
+                    int candidate = (int) table[slot] - 1;
+                    if ((int) (table[slot] >>> 32) == h
+                            && lines.sameLine(i, result[idText[candidate]], idLine[candidate])) {
+                        id = candidate;
+                        break;
+                    }
+                    slot = (slot + 1) & (tableSize - 1);
+                }
+                if (id < 0) {
+                    id = ids;
+                    table[slot] = ((long) h << 32) | (id + 1);
+                    idText[id] = t;
+                    idLine[id] = i;
+                    ids += 1;
+                }
+                lines.ids[i] = id;
+            }
+        }
+        return result;
+    }
+
+    /** Return the edits that turn line ids A into line ids B, in order,
+     *  with no two edits touching. */
+    static List<Edit> diff(int[] a, int[] b) {
+        /** a line that never occurs on the other side can only be part
+         * of an edit, so, as xdiff does, drop those lines first and only
+         * search for the edit script between the lines that might match.
+         * a shortest script of what is left is still a shortest one of
+         * the whole. */
+        int ids = 0;
+        for (int id : a) {
+            ids = Math.max(ids, id + 1);
+        }
+        for (int id : b) {
+            ids = Math.max(ids, id + 1);
+        }
+        boolean[] inA = new boolean[ids];
+        boolean[] inB = new boolean[ids];
+        for (int id : a) {
+            inA[id] = true;
+        }
+        for (int id : b) {
+            inB[id] = true;
+        }
+        int[] aIndex = keep(a, inB);
+        int[] bIndex = keep(b, inA);
+        int[] aKept = new int[aIndex.length];
+        int[] bKept = new int[bIndex.length];
+        for (int i = 0; i < aKept.length; i += 1) {
+            aKept[i] = a[aIndex[i]];
+        }
+        for (int i = 0; i < bKept.length; i += 1) {
+            bKept[i] = b[bIndex[i]];
+        }
+        int max = (aKept.length + bKept.length + 1) / 2;
+        int[] forward = new int[2 * max + 3];
+        int[] reverse = new int[2 * max + 3];
+        List<Edit> kept = new ArrayList<>();
+        diff(aKept, 0, aKept.length, bKept, 0, bKept.length, kept, forward, reverse);
+
+        /** every line outside the kept edits is matched; turn the gaps
+         * between matched lines, in the full texts, into edits. */
+        List<Edit> edits = new ArrayList<>();
+        int x = 0;
+        int y = 0;
+        int aNext = 0;
+        int bNext = 0;
+        for (int e = 0; e <= kept.size(); e += 1) {
+            int xEnd = e < kept.size() ? kept.get(e).aStart : aKept.length;
+            for (; x < xEnd; x += 1, y += 1) {
+                if (aIndex[x] > aNext || bIndex[y] > bNext) {
+                    addEdit(edits, aNext, aIndex[x], bNext, bIndex[y]);
+                }
+                aNext = aIndex[x] + 1;
+                bNext = bIndex[y] + 1;
+            }
+            if (e < kept.size()) {
+                x = kept.get(e).aEnd;
+                y = kept.get(e).bEnd;
+            }
+        }
+        if (aNext < a.length || bNext < b.length) {
+            addEdit(edits, aNext, a.length, bNext, b.length);
+        }
+        return edits;
+    }
+
+    /** Return the indices of the lines of IDS that are in OTHER. */
+    private static int[] keep(int[] ids, boolean[] other) {
+        int[] kept = new int[ids.length];
+        int size = 0;
+        for (int i = 0; i < ids.length; i += 1) {
+            if (other[ids[i]]) {
+                kept[size] = i;
+                size += 1;
+            }
+        }
+        return Arrays.copyOf(kept, size);
+    }
+
+    /** Return the edits that turn line ids A into line ids B, as the
+     *  histogram diff finds them, in order, with no two edits touching. */
+    static List<Edit> histogram(int[] a, int[] b) {
+        List<Edit> edits = new ArrayList<>();
+        new Histogram(a, b).diff(0, a.length, 0, b.length, edits);
+        return edits;
+    }
+
+    /** The histogram diff of two arrays of line ids. Its tables are
+     *  allocated once and emptied after each region, so the search does
+     *  not allocate. */
+    private static class Histogram {
+        /** The old and new line ids. */
+        private final int[] a;
+        private final int[] b;
+        /** Occurrences of each id in the region of A being searched. */
+        private final int[] count;
+        /** Lowest position of each id in that region, or -1. */
+        private final int[] head;
+        /** Next position with the same id as each position of A, or -1. */
+        private final int[] chain;
+
+        Histogram(int[] a, int[] b) {
+            this.a = a;
+            this.b = b;
+            int ids = 0;
+            for (int id : a) {
+                ids = Math.max(ids, id + 1);
+            }
+            for (int id : b) {
+                ids = Math.max(ids, id + 1);
+            }
+            count = new int[ids];
+            head = new int[ids];
+            Arrays.fill(head, -1);
+            chain = new int[a.length];
+        }
+
+        /** Add the edits between A[aLo, aHi) and B[bLo, bHi) to EDITS. The
+         *  region before each anchor is a recursive call, the one after it
+         *  the next round of the loop. */
+        void diff(int aLo, int aHi, int bLo, int bHi, List<Edit> edits) {
+            while (true) {
+                while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+                    aLo += 1;
+                    bLo += 1;
+                }
+                while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+                    aHi -= 1;
+                    bHi -= 1;
+                }
+                if (aLo == aHi || bLo == bHi) {
+                    if (aLo < aHi || bLo < bHi) {
+                        addEdit(edits, aLo, aHi, bLo, bHi);
+                    }
+                    return;
+                }
+
+                for (int i = aHi - 1; i >= aLo; i -= 1) {
+                    chain[i] = head[a[i]];
+                    head[a[i]] = i;
+                    count[a[i]] += 1;
+                }
+                boolean common = false;
+                int bestCount = MAX_CHAIN + 1;
+                int bestLength = 0;
+                int bestA = 0;
+                int bestB = 0;
+                for (int j = bLo; j < bHi;) {
+                    int next = j + 1;
+                    int occurrences = count[b[j]];
+                    common |= occurrences > 0;
+                    if (occurrences > 0 && occurrences <= bestCount) {
+                        for (int i = head[b[j]]; i >= 0; i = chain[i]) {
+                            /** grow the match around (i, j) both ways,
+                             * keeping the lowest count of its lines. */
+                            int as = i;
+                            int bs = j;
+                            int ae = i + 1;
+                            int be = j + 1;
+                            int rarest = occurrences;
+                            while (as > aLo && bs > bLo && a[as - 1] == b[bs - 1]) {
+                                as -= 1;
+                                bs -= 1;
+                                rarest = Math.min(rarest, count[a[as]]);
+                            }
+                            while (ae < aHi && be < bHi && a[ae] == b[be]) {
+                                rarest = Math.min(rarest, count[a[ae]]);
+                                ae += 1;
+                                be += 1;
+                            }
+                            next = Math.max(next, be);
+                            if (ae - as > bestLength || rarest < bestCount) {
+                                bestLength = ae - as;
+                                bestA = as;
+                                bestB = bs;
+                                bestCount = rarest;
+                            }
+                        }
+                    }
+                    j = next;
+                }
+                for (int i = aLo; i < aHi; i += 1) {
+                    count[a[i]] = 0;
+                    head[a[i]] = -1;
+                }
+
+                if (bestLength == 0) {
+                    if (common) {
+                        int max = (aHi - aLo + bHi - bLo + 1) / 2;
+                        LineDiff.diff(a, aLo, aHi, b, bLo, bHi, edits,
+                                new int[2 * max + 3], new int[2 * max + 3]);
+                    } else {
+                        addEdit(edits, aLo, aHi, bLo, bHi);
+                    }
+                    return;
+                }
+                diff(aLo, bestA, bLo, bestB, edits);
+                aLo = bestA + bestLength;
+                bLo = bestB + bestLength;
+            }
+        }
+    }
+
+    /** Return the number of lines {removed, added} by EDITS. */
+    static int[] count(List<Edit> edits) {
+        int[] result = new int[2];
+        for (Edit edit : edits) {
+            result[0] += edit.aEnd - edit.aStart;
+            result[1] += edit.bEnd - edit.bStart;
+        }
+        return result;
+    }
+
+    /** Write the hunks of a unified diff from A to B, whose line ids EDITS
+     *  turns A's into B's, to OUT, with CONTEXT unchanged lines around each
+     *  edit. Edits closer than twice CONTEXT share a hunk. */
+    static void unified(ByteArrayOutputStream out, Lines a, Lines b, List<Edit> edits,
+                        int context) {
+        int first = 0;
+        while (first < edits.size()) {
+            int last = first;
+            while (last + 1 < edits.size()
+                    && edits.get(last + 1).aStart - edits.get(last).aEnd <= 2 * context) {
+                last += 1;
+            }
+            Edit start = edits.get(first);
+            Edit end = edits.get(last);
+            int aFrom = Math.max(0, start.aStart - context);
+            int bFrom = start.bStart - (start.aStart - aFrom);
+            int aTo = Math.min(a.size(), end.aEnd + context);
+            int bTo = end.bEnd + (aTo - end.aEnd);
+            out.writeBytes(("@@ -" + range(aFrom, aTo - aFrom) + " +"
+                    + range(bFrom, bTo - bFrom) + " @@\n").getBytes(StandardCharsets.UTF_8));
+
+            int aPos = aFrom;
+            for (int e = first; e <= last; e += 1) {
+                Edit edit = edits.get(e);
+                writeLines(out, ' ', a, aPos, edit.aStart);
+                writeLines(out, '-', a, edit.aStart, edit.aEnd);
+                writeLines(out, '+', b, edit.bStart, edit.bEnd);
+                aPos = edit.aEnd;
+            }
+            writeLines(out, ' ', a, aPos, aTo);
+            first = last + 1;
+        }
+    }
+
+    /** Return the line range of a hunk header, starting at line index
+     *  START and LENGTH lines long, as git writes it. */
+    private static String range(int start, int length) {
+        if (length == 1) {
+            return Integer.toString(start + 1);
+        } else if (length == 0) {
+            return start + ",0";
+        }
+        return (start + 1) + "," + length;
+    }
+
+    /** Write lines [FROM, TO) of LINES to OUT, each after PREFIX. */
+    private static void writeLines(ByteArrayOutputStream out, char prefix, Lines lines,
+                                   int from, int to) {
+        for (int i = from; i < to; i += 1) {
+            out.write(prefix);
+            int start = lines.starts[i];
+            int end = lines.starts[i + 1];
+            out.write(lines.data, start, end - start);
+            if (lines.data[end - 1] != '\n') {
+                out.writeBytes(NO_NEWLINE);
+            }
+        }
+    }
+
+    /** Check if DATA looks binary: a NUL byte in its first BINARY_PROBE
+     *  bytes. */
+    static boolean isBinary(byte[] data) {
+        int end = Math.min(data.length, BINARY_PROBE);
+        for (int i = 0; i < end; i += 1) {
+            if (data[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Add the edits between A[aLo, aHi) and B[bLo, bHi) to EDITS,
+     *  using FORWARD and REVERSE, large enough for the whole problem, to
+     *  search for middle snakes. */
+    private static void diff(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi,
+                             List<Edit> edits, int[] forward, int[] reverse) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            if (aLo < aHi || bLo < bHi) {
+                addEdit(edits, aLo, aHi, bLo, bHi);
+            }
+            return;
+        }
+        int[] snake = middleSnake(a, aLo, aHi, b, bLo, bHi, forward, reverse);
+        if (snake == null) {
+            addEdit(edits, aLo, aHi, bLo, bHi);
+            return;
+        }
+        diff(a, aLo, snake[0], b, bLo, snake[1], edits, forward, reverse);
+        diff(a, snake[2], aHi, b, snake[3], bHi, edits, forward, reverse);
+    }
+
+    /** Append the edit [aStart, aEnd) -> [bStart, bEnd) to EDITS, joining
+     *  it to the last one if they touch. */
+    private static void addEdit(List<Edit> edits, int aStart, int aEnd, int bStart, int bEnd) {
+        if (!edits.isEmpty()) {
+            Edit last = edits.get(edits.size() - 1);
+            if (last.aEnd == aStart && last.bEnd == bStart) {
+                edits.set(edits.size() - 1, new Edit(last.aStart, aEnd, last.bStart, bEnd));
+                return;
+            }
+        }
+        edits.add(new Edit(aStart, aEnd, bStart, bEnd));
+    }
+
+    /** Return the middle snake of a shortest edit script between
+     *  A[aLo, aHi) and B[bLo, bHi), both non-empty and differing at both
+     *  ends, as {aStart, bStart, aEnd, bEnd}; null if splitting there
+     *  would not shrink the problem.
+     *
+     *  Forward paths are kept by diagonal k = x - y, reverse paths by
+     *  diagonal c = (n - x) - (m - y) counted from the ends, each as the
+     *  furthest x (or distance from the end) reached so far, in FORWARD
+     *  and REVERSE. */
+    private static int[] middleSnake(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi,
+                                     int[] forward, int[] reverse) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        int offset = max + 1;
+        forward[offset + 1] = 0;
+        reverse[offset + 1] = 0;
+        for (int d = 0; d <= max; d += 1) {
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])) {
+                    x = forward[offset + k + 1];
+                } else {
+                    x = forward[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                int x0 = x;
+                int y0 = y;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[offset + k] = x;
+                int c = delta - k;
+                if (odd && c >= -(d - 1) && c <= d - 1 && x + reverse[offset + c] >= n) {
+                    return snake(x0, y0, x, y, n, m, aLo, bLo);
+                }
+            }
+            for (int c = -d; c <= d; c += 2) {
+                int x;
+                if (c == -d || (c != d && reverse[offset + c - 1] < reverse[offset + c + 1])) {
+                    x = reverse[offset + c + 1];
+                } else {
+                    x = reverse[offset + c - 1] + 1;
+                }
+                int y = x - c;
+                int x0 = x;
+                int y0 = y;
+                while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                    x += 1;
+                    y += 1;
+                }
+                reverse[offset + c] = x;
+                int k = delta - c;
+                if (!odd && k >= -d && k <= d && forward[offset + k] + x >= n) {
+                    return snake(n - x, m - y, n - x0, m - y0, n, m, aLo, bLo);
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Return the snake from (X0, Y0) to (X, Y) of an N by M problem
+     *  starting at (A_LO, B_LO), or null if it covers the whole problem
+     *  or none of it. */
+    private static int[] snake(int x0, int y0, int x, int y, int n, int m, int aLo, int bLo) {
+        if ((x0 == 0 && y0 == 0 && x == n && y == m)
+                || (x0 == 0 && y0 == 0 && x == 0 && y == 0)
+                || (x0 == n && y0 == m)) {
+            return null;
+        }
+        return new int[] {aLo + x0, bLo + y0, aLo + x, bLo + y};
+    }
+}
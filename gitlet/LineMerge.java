@@ -0,0 +1,151 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/** Three-way merge of a file, line by line (diff3).
+ *  The base, current and given versions are split into interned lines
+ *  together, and each side is diffed against the base. The two edit
+ *  lists are then walked in base order: an edit that overlaps or touches
+ *  no edit of the other side is taken as it is, and a group of edits
+ *  that do overlap is taken if both sides made the same change, or
+ *  becomes one conflict region between markers otherwise. Lines outside
+ *  every edit come from the base.
+ *
+ *  Binary files are not merged by line: any change on both sides makes
+ *  the whole file one conflict. Neither is a file changed on one side
+ *  and removed on the other (see conflict).
+ *  @author BillyDu
+ */
+class LineMerge {
+    /** Start of a conflict region, before the current side. */
+    static final byte[] OURS = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    /** Between the current and the given side of a conflict region. */
+    static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    /** End of a conflict region, after the given side. */
+    static final byte[] THEIRS = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    /** The outcome of a merge. */
+    static class Result {
+        /** The merged file, with markers around each conflict region. */
+        final byte[] contents;
+        /** The number of conflict regions. */
+        final int conflicts;
+
+        Result(byte[] contents, int conflicts) {
+            this.contents = contents;
+            this.conflicts = conflicts;
+        }
+    }
+
+    /** Merge the changes from BASE to OURS and from BASE to THEIRS. */
+    static Result merge(byte[] base, byte[] ours, byte[] theirs) {
+        if (LineDiff.isBinary(base) || LineDiff.isBinary(ours) || LineDiff.isBinary(theirs)) {
+            return conflict(ours, theirs);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                Math.max(ours.length, theirs.length) + 64);
+        LineDiff.Lines[] lines = LineDiff.split(base, ours, theirs);
+        LineDiff.Lines o = lines[0];
+        LineDiff.Lines a = lines[1];
+        LineDiff.Lines b = lines[2];
+        List<LineDiff.Edit> oursEdits = LineDiff.diff(o.ids, a.ids);
+        List<LineDiff.Edit> theirsEdits = LineDiff.diff(o.ids, b.ids);
+
+        int conflicts = 0;
+        int basePos = 0;
+        int i = 0;
+        int j = 0;
+        /** how far each side's line numbers are ahead of the base's,
+         * after the edits taken so far. */
+        int oursShift = 0;
+        int theirsShift = 0;
+        while (i < oursEdits.size() || j < theirsEdits.size()) {
+            /** start a group at the edit that comes first in the base,
+             * then pull in edits from either side while they overlap or
+             * touch the group. */
+            int lo;
+            if (j == theirsEdits.size()
+                    || (i < oursEdits.size() && oursEdits.get(i).aStart <= theirsEdits.get(j).aStart)) {
+                lo = oursEdits.get(i).aStart;
+            } else {
+                lo = theirsEdits.get(j).aStart;
+            }
+            int hi = lo;
+            int iEnd = i;
+            int jEnd = j;
+            boolean grew = true;
+            while (grew) {
+                grew = false;
+                while (iEnd < oursEdits.size() && oursEdits.get(iEnd).aStart <= hi) {
+                    hi = Math.max(hi, oursEdits.get(iEnd).aEnd);
+                    iEnd += 1;
+                    grew = true;
+                }
+                while (jEnd < theirsEdits.size() && theirsEdits.get(jEnd).aStart <= hi) {
+                    hi = Math.max(hi, theirsEdits.get(jEnd).aEnd);
+                    jEnd += 1;
+                    grew = true;
+                }
+            }
+
+            copy(out, o, basePos, lo);
+            int oursLo = lo + oursShift;
+            int theirsLo = lo + theirsShift;
+            oursShift += shift(oursEdits, i, iEnd);
+            theirsShift += shift(theirsEdits, j, jEnd);
+            int oursHi = hi + oursShift;
+            int theirsHi = hi + theirsShift;
+            if (jEnd == j) {
+                copy(out, a, oursLo, oursHi);
+            } else if (iEnd == i) {
+                copy(out, b, theirsLo, theirsHi);
+            } else if (Arrays.equals(a.ids, oursLo, oursHi, b.ids, theirsLo, theirsHi)) {
+                copy(out, a, oursLo, oursHi);
+            } else {
+                out.writeBytes(OURS);
+                copy(out, a, oursLo, oursHi);
+                out.writeBytes(SEPARATOR);
+                copy(out, b, theirsLo, theirsHi);
+                out.writeBytes(THEIRS);
+                conflicts += 1;
+            }
+            basePos = hi;
+            i = iEnd;
+            j = jEnd;
+        }
+        copy(out, o, basePos, o.size());
+        return new Result(out.toByteArray(), conflicts);
+    }
+
+    /** Return the whole of OURS and THEIRS as one conflict region. */
+    static Result conflict(byte[] ours, byte[] theirs) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                ours.length + theirs.length + 64);
+        out.writeBytes(OURS);
+        out.writeBytes(ours);
+        out.writeBytes(SEPARATOR);
+        out.writeBytes(theirs);
+        out.writeBytes(THEIRS);
+        return new Result(out.toByteArray(), 1);
+    }
+
+    /** Return how many lines EDITS[from, to) add, less the lines they
+     *  remove. */
+    private static int shift(List<LineDiff.Edit> edits, int from, int to) {
+        int shift = 0;
+        for (int k = from; k < to; k += 1) {
+            LineDiff.Edit edit = edits.get(k);
+            shift += (edit.bEnd - edit.bStart) - (edit.aEnd - edit.aStart);
+        }
+        return shift;
+    }
+
+    /** Write lines [FROM, TO) of LINES to OUT. */
+    private static void copy(ByteArrayOutputStream out, LineDiff.Lines lines, int from, int to) {
+        out.write(lines.data, lines.starts[from], lines.starts[to] - lines.starts[from]);
+    }
+}
@@ -1,5 +1,7 @@
 package gitlet;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 import static gitlet.Utils.*;
@@ -27,6 +29,11 @@ public class Main {
                     Repository.initRepo();
                     break;
                 case "add":
+                    if (args.length == 4 && args[1].equals(".")
+                            && args[2].equals("--jobs")) {
+                        Repository.addAll(parseJobs(args[3]));
+                        break;
+                    }
                     validateNumArgs(args, 2);
                     String filenameToAdd = args[1];
                     if (Objects.equals(filenameToAdd, ".")) {
@@ -46,8 +53,12 @@ public class Main {
                     Repository.commit(message);
                     break;
                 case "log":
-                    validateNumArgs(args, 1);
-                    Repository.log();
+                    if (args.length == 2 && args[1].equals("--oneline")) {
+                        Repository.log(true);
+                    } else {
+                        validateNumArgs(args, 1);
+                        Repository.log(false);
+                    }
                     break;
                 case "global-log":
                     validateNumArgs(args, 1);
@@ -77,10 +88,53 @@ public class Main {
                     Repository.reset(commitId);
                     break;
                 case "merge":
+                    if (args.length == 3 && args[2].startsWith("--find-renames=")) {
+                        Repository.merge(args[1], parseRenameThreshold(args[2]));
+                        break;
+                    }
                     validateNumArgs(args, 2);
                     String branchNameToMerge = args[1];
                     Repository.merge(branchNameToMerge);
                     break;
+                case "diff":
+                    handleDiff(args);
+                    break;
+                case "stats":
+                    validateNumArgs(args, 1);
+                    Repository.stats();
+                    break;
+                case "bitmaps":
+                    validateNumArgs(args, 1);
+                    Repository.bitmaps();
+                    break;
+                case "fsck":
+                    if (args.length == 3 && args[1].equals("--jobs")) {
+                        Repository.fsck(parseJobs(args[2]));
+                    } else {
+                        validateNumArgs(args, 1);
+                        Repository.fsck();
+                    }
+                    break;
+                case "gc":
+                    if (args.length == 2 && args[1].equals("--now")) {
+                        Repository.gc(0);
+                    } else {
+                        validateNumArgs(args, 1);
+                        Repository.gc(Repository.GC_GRACE_MILLIS);
+                    }
+                    break;
+                case "migrate":
+                    validateNumArgs(args, 1);
+                    Repository.migrate();
+                    break;
+                case "repack":
+                    if (args.length == 2 && args[1].equals("--delta")) {
+                        Repository.repack(true);
+                    } else {
+                        validateNumArgs(args, 1);
+                        Repository.repack(false);
+                    }
+                    break;
                 default:
                     throw error("No command with that name exists.");
             }
@@ -103,6 +157,80 @@ public class Main {
         }
     }
 
+    /** Parse the thread count given to --jobs.
+     *  @param jobs the argument after --jobs
+     *  @return the number of threads, at least 1 */
+    public static int parseJobs(String jobs) {
+        try {
+            int result = Integer.parseInt(jobs);
+            if (result >= 1) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            /* fall through to the error below. */
+        }
+        throw error("Incorrect operands.");
+    }
+
+    /** Parse the similarity given to --find-renames=.
+     *  @param option the whole option
+     *  @return the similarity in percent, from 0 to 100 */
+    public static int parseRenameThreshold(String option) {
+        String value = option.substring(option.indexOf('=') + 1);
+        try {
+            int result = Integer.parseInt(value);
+            if (result >= 0 && result <= 100) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            /* fall through to the error below. */
+        }
+        throw error("Incorrect operands.");
+    }
+
+    /** handle diff [--stat] [--histogram] [--find-renames=N | --no-renames]
+     *              [--cached | commit id commit id]
+     * */
+    public static void handleDiff(String[] args) {
+        boolean stat = false;
+        boolean histogram = false;
+        boolean cached = false;
+        int renameThreshold = Renames.DEFAULT_THRESHOLD;
+        List<String> commitIds = new ArrayList<>();
+        for (int i = 1; i < args.length; i += 1) {
+            if (args[i].startsWith("--find-renames=")) {
+                renameThreshold = parseRenameThreshold(args[i]);
+                continue;
+            }
+            switch (args[i]) {
+                case "--no-renames":
+                    renameThreshold = -1;
+                    break;
+                case "--stat":
+                    stat = true;
+                    break;
+                case "--histogram":
+                    histogram = true;
+                    break;
+                case "--cached":
+                case "--staged":
+                    cached = true;
+                    break;
+                default:
+                    commitIds.add(args[i]);
+            }
+        }
+        if (commitIds.size() == 2 && !cached) {
+            Repository.diff(commitIds.get(0), commitIds.get(1), stat, histogram, renameThreshold);
+        } else if (!commitIds.isEmpty()) {
+            throw error("Incorrect operands.");
+        } else if (cached) {
+            Repository.diffStaged(stat, histogram, renameThreshold);
+        } else {
+            Repository.diffWorking(stat, histogram);
+        }
+    }
+
     /** handle checkout
      * */
     public static void handleCheckout(String[] args) {
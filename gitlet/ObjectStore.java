@@ -0,0 +1,1069 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/** Represents the object database of a gitlet repository.
+ *  New objects are written loose, one file per object under
+ *  objects/xx/yyyy..., and `gitlet repack` moves them into a pack
+ *  (see PackFile). Reads try the loose file first and then the packs,
+ *  so both layouts keep working side by side.
+ *
+ *  Every object written by this class starts with a small header:
+ *      0xff 'G' 'L' | version (1 byte) | flags (1 byte)
+ *      | type (1 byte) | varint length of the contents
+ *  followed by the contents, deflated if FLAG_DEFLATED is set. The type
+ *  and length can be read with one short read, without inflating or
+ *  deserializing anything. Version 1 headers stop after the flags, and
+ *  objects written before headers existed have none at all; both are
+ *  still read, with their type worked out from the contents. The same
+ *  stored bytes are copied into packs unchanged.
+ *
+ *  `gitlet repack --delta` may also store a blob as a delta against
+ *  another blob (see Delta). Such objects set FLAG_DELTA and put the
+ *  20-byte id of their base right after the header; the (deflated)
+ *  payload is then the delta instead of the contents.
+ *
+ *  Files of at least Chunker.THRESHOLD bytes are split into chunks that
+ *  are stored as objects of their own. The blob itself is then a
+ *  manifest listing the chunks, marked with FLAG_CHUNKED.
+ *  @author BillyDu
+ */
+class ObjectStore {
+    /** The directory where packs and their indexes are stored. */
+    static final File PACK_DIR = join(Repository.OBJECTS_DIR, "pack");
+
+    /** The marker at the start of every object with a header. A UTF-8 text
+     *  file can never start with 0xff, so plain blobs of older
+     *  repositories are not mistaken for headers. */
+    private static final byte[] MAGIC = {(byte) 0xff, 'G', 'L'};
+    /** Current header version. */
+    private static final int VERSION = 2;
+    /** Header version without type and length. */
+    private static final int VERSION_UNTYPED = 1;
+    /** Longest possible header. */
+    private static final int MAX_HEADER_LENGTH = MAGIC.length + 3 + 10;
+    /** The first bytes of a Java serialization stream, which is how
+     *  commits were stored before objects had a type. */
+    private static final int SERIAL_MAGIC = 0xaced0005;
+    /** Header flag: the contents are a zlib stream. */
+    private static final int FLAG_DEFLATED = 1;
+    /** Header flag: the payload is a delta against a base object. */
+    private static final int FLAG_DELTA = 2;
+    /** Header flag: the payload is a chunk manifest (see Chunker). */
+    private static final int FLAG_CHUNKED = 4;
+    /** Longest chain of deltas repack builds before storing a blob whole. */
+    static final int MAX_DELTA_DEPTH = 10;
+    /** Blobs larger than this are never deltified, to bound memory use. */
+    private static final int MAX_DELTA_SIZE = 32 << 20;
+    /** Upper bound on the bytes kept in the delta base cache. */
+    private static final long BASE_CACHE_BYTES = 16 << 20;
+    /** Size of the buffers used to stream objects in and out. */
+    private static final int BUFFER_SIZE = 8192;
+    /** Size of the first block of a file that writeFile trial-compresses
+     *  to decide whether deflating the file is worth it. */
+    private static final int PROBE_SIZE = 64 << 10;
+
+    /** The kinds of objects in the store. */
+    enum Type {
+        /** An object without a type in its header. */
+        UNKNOWN(0),
+        /** The contents of a file. */
+        BLOB(1),
+        /** A serialized Commit. */
+        COMMIT(2),
+        /** A piece of a chunked blob. */
+        CHUNK(3),
+        /** A directory listing (see Tree). */
+        TREE(4);
+
+        /** The code of this type in object headers. */
+        final int code;
+
+        Type(int code) {
+            this.code = code;
+        }
+
+        /** Return the type whose header code is CODE. */
+        static Type of(int code) {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw error("Unknown object type %d.", code);
+        }
+    }
+
+    /** The parsed header of a stored object. */
+    static class Header {
+        /** Header flags. */
+        final int flags;
+        /** Type of the object, UNKNOWN if the header does not say. */
+        final Type type;
+        /** Length of the contents, or -1 if the header does not say. */
+        final long length;
+        /** Number of bytes the header takes, 0 if there is none. */
+        final int size;
+
+        Header(int flags, Type type, long length, int size) {
+            this.flags = flags;
+            this.type = type;
+            this.length = length;
+            this.size = size;
+        }
+    }
+
+    /** The header of objects written before headers existed. */
+    private static final Header NO_HEADER = new Header(0, Type.UNKNOWN, -1, 0);
+
+    /** The packs of this repository, opened on first use. */
+    private static List<PackFile> packs;
+
+    /** Recently rebuilt delta bases, least recently used first, so that
+     *  walking down a delta chain, or checking out several versions that
+     *  share one, does not rebuild the same base again. */
+    private static final LinkedHashMap<String, byte[]> baseCache =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /** Total size of the contents in baseCache. */
+    private static long baseCacheBytes;
+
+    /** Return the loose file that stores (or would store) object SHA1. */
+    static File looseFile(String sha1) {
+        return join(Repository.OBJECTS_DIR, sha1.substring(0, 2), sha1.substring(2));
+    }
+
+    /** Return the packs of this repository. Synchronized, since objects
+     *  may be stored from several threads at once (see Repository.addAll). */
+    private static synchronized List<PackFile> packs() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            List<String> names = plainFilenamesIn(PACK_DIR);
+            if (names != null) {
+                for (String name : names) {
+                    if (name.endsWith(".idx")) {
+                        String base = name.substring(0, name.length() - 4);
+                        packs.add(new PackFile(join(PACK_DIR, base + ".pack"),
+                                join(PACK_DIR, name)));
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+
+    /** Return the stored bytes of the packed object SHA1, or null if no
+     *  pack contains it. */
+    private static ByteBuffer packedSlice(String sha1) {
+        byte[] id = sha1ToBytes(sha1);
+        if (id == null) {
+            return null;
+        }
+        for (PackFile pack : packs()) {
+            int pos = pack.find(id);
+            if (pos >= 0) {
+                return pack.slice(pos);
+            }
+        }
+        return null;
+    }
+
+    /** Check if the object SHA1 exists, loose or packed. */
+    static boolean contains(String sha1) {
+        byte[] id = sha1ToBytes(sha1);
+        if (id == null) {
+            return false;
+        }
+        if (looseFile(sha1).isFile()) {
+            return true;
+        }
+        for (PackFile pack : packs()) {
+            if (pack.find(id) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return a stream over the contents of object SHA1, inflated as
+     *  needed, or null if there is no such object. */
+    static InputStream open(String sha1) {
+        byte[] id = sha1ToBytes(sha1);
+        if (id == null) {
+            return null;
+        }
+        File loose = looseFile(sha1);
+        if (loose.isFile()) {
+            return openFile(loose);
+        }
+        ByteBuffer stored = packedSlice(sha1);
+        return stored == null ? null : decode(new BufferInputStream(stored));
+    }
+
+    /** Return a stream over the contents of the object stored in FILE. */
+    static InputStream openFile(File file) {
+        return decode(openRaw(file));
+    }
+
+    /** Return the contents of object SHA1, or null if there is no such
+     *  object. */
+    static byte[] read(String sha1) {
+        InputStream in = open(sha1);
+        if (in == null) {
+            return null;
+        }
+        try (in) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the header at the start of the N bytes of BUF. */
+    private static Header parseHeader(byte[] buf, int n) {
+        if (n < MAGIC.length + 2) {
+            return NO_HEADER;
+        }
+        for (int i = 0; i < MAGIC.length; i += 1) {
+            if (buf[i] != MAGIC[i]) {
+                return NO_HEADER;
+            }
+        }
+        int version = buf[MAGIC.length];
+        int flags = buf[MAGIC.length + 1];
+        if (version == VERSION_UNTYPED) {
+            return new Header(flags, Type.UNKNOWN, -1, MAGIC.length + 2);
+        } else if (version != VERSION || n < MAGIC.length + 4) {
+            throw error("Unknown object format %d.", version);
+        }
+        Type type = Type.of(buf[MAGIC.length + 2]);
+        int[] pos = {MAGIC.length + 3};
+        long length = Delta.readVarint(buf, pos);
+        return new Header(flags, type, length, pos[0]);
+    }
+
+    /** Return the header bytes of an object with FLAGS, TYPE and contents
+     *  LENGTH bytes long. */
+    private static byte[] headerBytes(int flags, Type type, long length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(MAX_HEADER_LENGTH);
+        out.writeBytes(MAGIC);
+        out.write(VERSION);
+        out.write(flags);
+        out.write(type.code);
+        Delta.writeVarint(out, length);
+        return out.toByteArray();
+    }
+
+    /** Return the header of the stored object SHA1, read with one short
+     *  read, or null if there is no such object. */
+    static Header readHeader(String sha1) {
+        byte[] id = sha1ToBytes(sha1);
+        if (id == null) {
+            return null;
+        }
+        File loose = looseFile(sha1);
+        if (loose.isFile()) {
+            return readHeader(loose);
+        }
+        ByteBuffer stored = packedSlice(sha1);
+        if (stored != null) {
+            byte[] buf = new byte[Math.min(MAX_HEADER_LENGTH, stored.remaining())];
+            stored.get(buf);
+            return parseHeader(buf, buf.length);
+        }
+        return null;
+    }
+
+    /** Return the header of the object stored in FILE. */
+    static Header readHeader(File file) {
+        try (FileChannel src = FileChannel.open(file.toPath())) {
+            ByteBuffer buf = ByteBuffer.allocate(MAX_HEADER_LENGTH);
+            src.read(buf, 0);
+            return parseHeader(buf.array(), buf.position());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the type of object SHA1, or null if there is no such object.
+     *  Objects from before typed headers are told apart by their first
+     *  bytes: commits were Java-serialized, so anything else is a blob,
+     *  while UNKNOWN means "probably a commit", to be confirmed by reading
+     *  it. */
+    static Type typeOf(String sha1) {
+        Header header = readHeader(sha1);
+        if (header == null || header.type != Type.UNKNOWN) {
+            return header == null ? null : header.type;
+        }
+        return typeOfContents(open(sha1));
+    }
+
+    /** Return the type of the object stored in FILE, as for typeOf. */
+    static Type typeOfFile(File file) {
+        Header header = readHeader(file);
+        if (header.type != Type.UNKNOWN) {
+            return header.type;
+        }
+        return typeOfContents(openFile(file));
+    }
+
+    /** Return UNKNOWN if the contents IN start like a serialized object
+     *  and BLOB otherwise, closing IN. */
+    private static Type typeOfContents(InputStream in) {
+        try (in) {
+            byte[] start = in.readNBytes(4);
+            if (start.length == 4 && ByteBuffer.wrap(start).getInt() == SERIAL_MAGIC) {
+                return Type.UNKNOWN;
+            }
+            return Type.BLOB;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return a stream over the contents stored in RAW, skipping the
+     *  header and inflating if the header asks for it. Headerless
+     *  objects are returned as they are. */
+    private static InputStream decode(InputStream raw) {
+        try {
+            PushbackInputStream in = new PushbackInputStream(raw, MAX_HEADER_LENGTH);
+            byte[] buf = new byte[MAX_HEADER_LENGTH];
+            int n = in.readNBytes(buf, 0, buf.length);
+            Header header = parseHeader(buf, n);
+            in.unread(buf, header.size, n - header.size);
+
+            int flags = header.flags;
+            String baseSHA1 = null;
+            if ((flags & FLAG_DELTA) != 0) {
+                byte[] baseId = in.readNBytes(UID_LENGTH / 2);
+                baseSHA1 = bytesToSha1(baseId, 0, baseId.length);
+            }
+            InputStream payload = (flags & FLAG_DEFLATED) != 0 ? inflate(in) : in;
+            if ((flags & FLAG_CHUNKED) != 0) {
+                byte[] manifest;
+                try (payload) {
+                    manifest = payload.readAllBytes();
+                }
+                return openChunks(Chunker.decodeManifest(manifest));
+            }
+            if (baseSHA1 == null) {
+                return payload;
+            }
+            byte[] delta;
+            try (payload) {
+                delta = payload.readAllBytes();
+            }
+            byte[] base = readBase(baseSHA1, MAX_DELTA_SIZE);
+            if (base == null) {
+                throw error("Corrupt delta base %s.", baseSHA1);
+            }
+            return new ByteArrayInputStream(Delta.apply(base, delta));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return a stream over the concatenated contents of CHUNKS, opening
+     *  each chunk only when the previous one is used up. */
+    private static InputStream openChunks(List<Chunker.Chunk> chunks) {
+        Iterator<Chunker.Chunk> iter = chunks.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                String chunkSHA1 = iter.next().id;
+                InputStream chunk = open(chunkSHA1);
+                if (chunk == null) {
+                    throw error("Missing chunk %s.", chunkSHA1);
+                }
+                return chunk;
+            }
+        });
+    }
+
+    /** Return the chunks of blob SHA1, or null if it is not chunked. */
+    static List<Chunker.Chunk> chunksOf(String sha1) {
+        Header header = readHeader(sha1);
+        if (header == null || (header.flags & FLAG_CHUNKED) == 0) {
+            return null;
+        }
+        InputStream in = storedPayload(sha1);
+        try (in) {
+            return Chunker.decodeManifest(in.readAllBytes());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the payload of object SHA1 without interpreting it: a delta
+     *  or manifest is returned as such. SHA1 must exist and have a header. */
+    private static InputStream storedPayload(String sha1) {
+        InputStream raw;
+        File loose = looseFile(sha1);
+        if (loose.isFile()) {
+            raw = openRaw(loose);
+        } else {
+            ByteBuffer stored = packedSlice(sha1);
+            raw = stored == null ? null : new BufferInputStream(stored);
+        }
+        Header header = readHeader(sha1);
+        try {
+            raw.skipNBytes(header.size);
+            int flags = header.flags;
+            if ((flags & FLAG_DELTA) != 0) {
+                raw.skipNBytes(UID_LENGTH / 2);
+            }
+            return (flags & FLAG_DEFLATED) != 0 ? inflate(raw) : raw;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return a buffered stream over the bytes of FILE. */
+    private static InputStream openRaw(File file) {
+        try {
+            return new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return a stream that inflates the zlib stream IN. */
+    private static InputStream inflate(InputStream in) {
+        return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inf.end();
+            }
+        };
+    }
+
+    /** Return the contents of the delta base SHA1, through the base cache,
+     *  or null if they are longer than LIMIT bytes. */
+    private static byte[] readBase(String sha1, int limit) {
+        byte[] contents;
+        synchronized (baseCache) {
+            contents = baseCache.get(sha1);
+        }
+        if (contents != null) {
+            return contents.length <= limit ? contents : null;
+        }
+        InputStream in = open(sha1);
+        if (in == null) {
+            throw error("Missing delta base %s.", sha1);
+        }
+        try (in) {
+            contents = in.readNBytes(limit);
+            if (in.read() >= 0) {
+                return null;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (contents.length > BASE_CACHE_BYTES) {
+            return contents;
+        }
+        /** checkout may rebuild bases on several threads at once. */
+        synchronized (baseCache) {
+            byte[] old = baseCache.put(sha1, contents);
+            baseCacheBytes += contents.length - (old == null ? 0 : old.length);
+            Iterator<Map.Entry<String, byte[]>> eldest = baseCache.entrySet().iterator();
+            while (baseCacheBytes > BASE_CACHE_BYTES) {
+                baseCacheBytes -= eldest.next().getValue().length;
+                eldest.remove();
+            }
+        }
+        return contents;
+    }
+
+    /** Copy the stored bytes of object SHA1, header and all, to OUT. */
+    private static void copyStored(String sha1, OutputStream out) throws IOException {
+        File loose = looseFile(sha1);
+        if (loose.isFile()) {
+            Files.copy(loose.toPath(), out);
+            return;
+        }
+        ByteBuffer stored = packedSlice(sha1);
+        if (stored == null) {
+            throw error("Missing object %s.", sha1);
+        }
+        byte[] buf = new byte[BUFFER_SIZE];
+        while (stored.hasRemaining()) {
+            int n = Math.min(buf.length, stored.remaining());
+            stored.get(buf, 0, n);
+            out.write(buf, 0, n);
+        }
+    }
+
+    /** Write the header of an object with FLAGS and TYPE whose contents
+     *  are LENGTH bytes long, and then PAYLOAD, deflated if FLAGS says so,
+     *  to OUT. If FLAGS has FLAG_DELTA, PAYLOAD is a delta against
+     *  BASESHA1. */
+    private static void writeStored(OutputStream out, byte[] payload, int flags,
+                                    Type type, long length,
+                                    String baseSHA1) throws IOException {
+        out.write(headerBytes(flags, type, length));
+        if ((flags & FLAG_DELTA) != 0) {
+            out.write(sha1ToBytes(baseSHA1));
+        }
+        if ((flags & FLAG_DEFLATED) == 0) {
+            out.write(payload);
+            return;
+        }
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            DeflaterOutputStream zip = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            zip.write(payload);
+            zip.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Return the stored bytes of an object of TYPE whose contents are
+     *  LENGTH bytes long and whose deflated payload is PAYLOAD, a delta
+     *  against BASESHA1 unless that is null. */
+    private static byte[] encode(byte[] payload, Type type, long length,
+                                 String baseSHA1) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int flags = baseSHA1 == null ? FLAG_DEFLATED : FLAG_DEFLATED | FLAG_DELTA;
+            writeStored(out, payload, flags, type, length, baseSHA1);
+            return out.toByteArray();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Write CONTENTS as the object SHA1 of type TYPE, unless it already
+     * exists. The contents are deflated straight into the object file,
+     * so no compressed copy is held in memory.
+     */
+    static void write(String sha1, Type type, byte[] contents) {
+        int n = Math.min(contents.length, PROBE_SIZE);
+        writeLoose(sha1, contents, compresses(contents, n) ? FLAG_DEFLATED : 0,
+                type, contents.length);
+    }
+
+    /** Write the object SHA1 with header flags FLAGS and payload PAYLOAD
+     *  as a loose file, unless it already exists. The object has type
+     *  TYPE and its contents are LENGTH bytes long. */
+    private static void writeLoose(String sha1, byte[] payload, int flags,
+                                   Type type, long length) {
+        File file = looseFile(sha1);
+        if (file.exists() || contains(sha1)) {
+            return;
+        }
+        file.getParentFile().mkdir();
+
+        /** write under a temporary name and rename, so that threads
+         * storing the same object at once never see it half-written. */
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(Repository.OBJECTS_DIR.toPath(), "tmp_obj_", "");
+            try (OutputStream out = new BufferedOutputStream(
+                    Files.newOutputStream(tmp), BUFFER_SIZE)) {
+                writeStored(out, payload, flags, type, length, null);
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            if (tmp != null) {
+                tmp.toFile().delete();
+            }
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the blob SHA1 the contents of FILE would have, without
+     *  storing anything. The file is streamed through a fixed-size
+     *  buffer. */
+    static String hashFile(File file) {
+        try {
+            return hashStream(Files.newInputStream(file.toPath()));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the SHA1 of the contents of object SHA1 as they read back,
+     *  through any delta or chunk manifest, which equals SHA1 unless the
+     *  object is damaged. Returns null if there is no such object. */
+    static String rehash(String sha1) {
+        InputStream in = open(sha1);
+        return in == null ? null : hashStream(in);
+    }
+
+    /** Return the SHA1 of the bytes of IN, streamed through a fixed-size
+     *  buffer, closing IN. */
+    private static String hashStream(InputStream in) {
+        try (in) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+            byte[] digest = md.digest();
+            return bytesToSha1(digest, 0, digest.length);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /**
+     * Store the contents of FILE as a blob and return its SHA1.
+     * The file is hashed and written in one pass through a fixed-size
+     * buffer, into a temporary file that is renamed into place once the
+     * SHA1 is known, so memory use does not depend on the size of FILE.
+     * Files whose first PROBE_SIZE bytes do not compress, such as media
+     * or archives, are stored without deflating so that checkout can
+     * copy them with FileChannel.transferTo. Files of at least
+     * Chunker.THRESHOLD bytes are chunked instead (see writeChunked).
+     */
+    static String writeFile(File file) {
+        if (file.length() >= Chunker.THRESHOLD) {
+            return writeChunked(file);
+        }
+        Path tmp;
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+            tmp = Files.createTempFile(Repository.OBJECTS_DIR.toPath(), "tmp_obj_", "");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        long length = file.length();
+        try (InputStream in = Files.newInputStream(file.toPath());
+             OutputStream out = new BufferedOutputStream(
+                     Files.newOutputStream(tmp), BUFFER_SIZE)) {
+            byte[] buf = new byte[PROBE_SIZE];
+            int n = in.readNBytes(buf, 0, buf.length);
+            boolean deflate = compresses(buf, n);
+
+            out.write(headerBytes(deflate ? FLAG_DEFLATED : 0, Type.BLOB, length));
+            DeflaterOutputStream zip = deflate
+                    ? new DeflaterOutputStream(out, deflater, BUFFER_SIZE) : null;
+            OutputStream body = new DigestOutputStream(deflate ? zip : out, md);
+            long total = 0;
+            while (n > 0) {
+                body.write(buf, 0, n);
+                total += n;
+                n = in.read(buf);
+            }
+            if (zip != null) {
+                zip.finish();
+            }
+            if (total != length) {
+                throw error("File %s changed while it was being added.", file.getName());
+            }
+        } catch (IOException excp) {
+            tmp.toFile().delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (GitletException excp) {
+            tmp.toFile().delete();
+            throw excp;
+        } finally {
+            deflater.end();
+        }
+
+        byte[] digest = md.digest();
+        String sha1 = bytesToSha1(digest, 0, digest.length);
+        File target = looseFile(sha1);
+        if (target.exists() || contains(sha1)) {
+            tmp.toFile().delete();
+            return sha1;
+        }
+        target.getParentFile().mkdir();
+        try {
+            Files.move(tmp, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            tmp.toFile().delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return sha1;
+    }
+
+    /**
+     * Store the contents of FILE as a chunked blob and return its SHA1.
+     * The file is read once through a MAX_SIZE buffer: each chunk is cut,
+     * hashed and stored as an object of its own unless an identical chunk
+     * is already stored, and the blob becomes a manifest of the chunks.
+     */
+    private static String writeChunked(File file) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+        List<Chunker.Chunk> chunks = new ArrayList<>();
+        long length = 0;
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            byte[] buf = new byte[Chunker.MAX_SIZE];
+            int filled = in.readNBytes(buf, 0, buf.length);
+            while (filled > 0) {
+                int cut = Chunker.cutPoint(buf, 0, filled);
+                byte[] chunk = Arrays.copyOf(buf, cut);
+                md.update(chunk);
+                String chunkSHA1 = sha1(chunk);
+                write(chunkSHA1, Type.CHUNK, chunk);
+                chunks.add(new Chunker.Chunk(chunkSHA1, cut));
+                length += cut;
+
+                System.arraycopy(buf, cut, buf, 0, filled - cut);
+                filled -= cut;
+                filled += in.readNBytes(buf, filled, buf.length - filled);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        byte[] digest = md.digest();
+        String sha1 = bytesToSha1(digest, 0, digest.length);
+        writeLoose(sha1, Chunker.encodeManifest(chunks), FLAG_CHUNKED | FLAG_DEFLATED,
+                Type.BLOB, length);
+        return sha1;
+    }
+
+    /** Check if deflating the first N bytes of BUF saves at least a tenth. */
+    private static boolean compresses(byte[] buf, int n) {
+        if (n == 0) {
+            return true;
+        }
+        Deflater probe = new Deflater(Deflater.BEST_SPEED);
+        try {
+            probe.setInput(buf, 0, n);
+            probe.finish();
+            byte[] out = new byte[BUFFER_SIZE];
+            long size = 0;
+            while (!probe.finished()) {
+                size += probe.deflate(out);
+            }
+            return size < n - n / 10;
+        } finally {
+            probe.end();
+        }
+    }
+
+    /**
+     * Write the contents of blob SHA1 to the file DEST.
+     * Objects stored without deflating are copied with transferTo, and
+     * all others are inflated through a fixed-size buffer, so the blob is
+     * never held in memory as a whole (deltas excepted).
+     */
+    static void copyTo(String sha1, File dest) {
+        Header header = readHeader(sha1);
+        if (header == null) {
+            throw error("Missing blob %s.", sha1);
+        }
+        try {
+            int skip = rawPayloadStart(header);
+            File loose = looseFile(sha1);
+            if (skip >= 0 && loose.isFile()) {
+                try (FileChannel src = FileChannel.open(loose.toPath());
+                     FileChannel out = openForWrite(dest)) {
+                    long position = skip;
+                    long size = src.size();
+                    while (position < size) {
+                        position += src.transferTo(position, size - position, out);
+                    }
+                }
+                return;
+            } else if (skip >= 0) {
+                ByteBuffer slice = packedSlice(sha1);
+                slice.position(skip);
+                try (FileChannel out = openForWrite(dest)) {
+                    while (slice.hasRemaining()) {
+                        out.write(slice);
+                    }
+                }
+                return;
+            }
+
+            try (InputStream in = open(sha1);
+                 OutputStream out = Files.newOutputStream(dest.toPath())) {
+                in.transferTo(out);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the position of the contents in a stored object with
+     *  HEADER, if the contents are stored as they are, or -1 if they are
+     *  deflated, chunked or a delta. */
+    private static int rawPayloadStart(Header header) {
+        return header.flags == 0 ? header.size : -1;
+    }
+
+    /** Open DEST for writing, truncating it. */
+    private static FileChannel openForWrite(File dest) throws IOException {
+        return FileChannel.open(dest.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /** Return the pack files of this repository. */
+    static List<File> packFiles() {
+        List<File> result = new ArrayList<>();
+        for (PackFile pack : packs()) {
+            result.add(pack.getPackFile());
+        }
+        return result;
+    }
+
+    /** Return the ids of all packed objects, in sorted order. */
+    static List<String> packedIds() {
+        TreeSet<String> result = new TreeSet<>();
+        for (PackFile pack : packs()) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                result.add(pack.idAt(i));
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /** Return the ids of all loose objects, in sorted order. */
+    static List<String> looseIds() {
+        List<String> result = new ArrayList<>();
+        String[] dirs = Repository.OBJECTS_DIR.list();
+        if (dirs == null) {
+            return result;
+        }
+        for (String dirName : dirs) {
+            if (dirName.length() != 2) {
+                continue;
+            }
+            List<String> fileNames = plainFilenamesIn(join(Repository.OBJECTS_DIR, dirName));
+            if (fileNames == null) {
+                continue;
+            }
+            for (String fileName : fileNames) {
+                if (sha1ToBytes(dirName + fileName) != null) {
+                    result.add(dirName + fileName);
+                }
+            }
+        }
+        result.sort(null);
+        return result;
+    }
+
+    /**
+     * Delete the loose objects that are not in KEEP and were last written
+     * before CUTOFF, along with temporary files left behind by interrupted
+     * writes. Each fan-out directory is swept as one batch: listed once,
+     * its files deleted, and the directory removed if that empties it.
+     * The directories are swept on JOBS threads. Packed objects are never
+     * deleted.
+     *
+     * @param keep: the ids of the objects to keep; read from all threads.
+     * @param cutoff: objects written at or after this time, in epoch
+     *              millis, are kept even if unreachable.
+     * @return the number of objects deleted and the bytes they took.
+     */
+    static long[] prune(Set<String> keep, long cutoff, int jobs) {
+        File[] dirs = Repository.OBJECTS_DIR.listFiles();
+        if (dirs == null) {
+            return new long[] {0, 0};
+        }
+        LongAdder objects = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        parallelFor(jobs, dirs.length, i -> {
+            File dir = dirs[i];
+            if (dir.getName().startsWith("tmp_obj_") && dir.lastModified() < cutoff) {
+                dir.delete();
+                return;
+            }
+            String[] fileNames = dir.getName().length() == 2 ? dir.list() : null;
+            if (fileNames == null) {
+                return;
+            }
+            for (String fileName : fileNames) {
+                String sha1 = dir.getName() + fileName;
+                File file = join(dir, fileName);
+                if (sha1ToBytes(sha1) == null || keep.contains(sha1)
+                        || file.lastModified() >= cutoff) {
+                    continue;
+                }
+                long length = file.length();
+                if (file.delete()) {
+                    objects.increment();
+                    bytes.add(length);
+                }
+            }
+            dir.delete();
+        });
+        return new long[] {objects.sum(), bytes.sum()};
+    }
+
+    /**
+     * Combine all loose objects and existing packs into one new pack,
+     * then delete the loose files and the old packs.
+     *
+     * @param deltaBases: if null, every object is copied as it is stored.
+     *                  Otherwise, maps each blob to the blob it should be
+     *                  stored as a delta against; all other objects are
+     *                  stored whole.
+     * @return the number of objects in the new pack and the number of
+     *         them stored as deltas.
+     */
+    static int[] repack(Map<String, String> deltaBases) {
+        List<String> loose = looseIds();
+        TreeSet<String> all = new TreeSet<>(loose);
+        all.addAll(packedIds());
+        if (all.isEmpty()) {
+            return new int[] {0, 0};
+        }
+
+        /** write the new pack under temporary names first, so that a
+         * crash never leaves a half-written pack next to a valid index. */
+        PACK_DIR.mkdir();
+        File tmpPack = join(PACK_DIR, "tmp_pack");
+        File tmpIndex = join(PACK_DIR, "tmp_idx");
+        tmpPack.deleteOnExit();
+        tmpIndex.deleteOnExit();
+        int[] deltas = {0};
+        String name = "pack-" + PackFile.write(tmpPack, tmpIndex,
+                new ArrayList<>(all), (sha1, out) -> {
+                    if (deltaBases != null) {
+                        byte[] packed = deltify(sha1, deltaBases.get(sha1));
+                        if (packed != null) {
+                            deltas[0] += 1;
+                            out.write(packed);
+                            return;
+                        }
+                        Header header = readHeader(sha1);
+                        if ((header.flags & FLAG_DELTA) != 0) {
+                            out.write(encode(read(sha1), header.type, header.length, null));
+                            return;
+                        }
+                    }
+                    copyStored(sha1, out);
+                });
+        File newPack = join(PACK_DIR, name + ".pack");
+        File newIndex = join(PACK_DIR, name + ".idx");
+        try {
+            Files.move(tmpPack.toPath(), newPack.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmpIndex.toPath(), newIndex.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        /** drop the old packs and the loose copies of packed objects. */
+        for (PackFile pack : packs()) {
+            pack.close();
+            File oldPack = pack.getPackFile();
+            if (!oldPack.equals(newPack)) {
+                String oldName = oldPack.getName();
+                oldPack.delete();
+                join(PACK_DIR, oldName.substring(0, oldName.length() - 5) + ".idx").delete();
+            }
+        }
+        for (String sha1 : loose) {
+            File file = looseFile(sha1);
+            file.delete();
+            file.getParentFile().delete();
+        }
+        packs = null;
+        return new int[] {all.size(), deltas[0]};
+    }
+
+    /** Return the stored bytes of blob SHA1 as a delta against BASESHA1,
+     *  or null if there is no base or the delta would save less than half
+     *  of the blob. */
+    private static byte[] deltify(String sha1, String baseSHA1) {
+        if (baseSHA1 == null) {
+            return null;
+        }
+        Header header = readHeader(sha1);
+        Header baseHeader = readHeader(baseSHA1);
+        if (((header.flags | baseHeader.flags) & FLAG_CHUNKED) != 0
+                || header.length > MAX_DELTA_SIZE || baseHeader.length > MAX_DELTA_SIZE) {
+            return null;
+        }
+        byte[] contents = readBase(sha1, MAX_DELTA_SIZE);
+        byte[] base = readBase(baseSHA1, MAX_DELTA_SIZE);
+        if (contents == null || base == null) {
+            return null;
+        }
+        byte[] delta = Delta.create(base, contents);
+        if (delta.length >= contents.length / 2) {
+            return null;
+        }
+        return encode(delta, Type.BLOB, contents.length, baseSHA1);
+    }
+
+    /** An InputStream over the remaining bytes of a ByteBuffer, used to
+     *  decode packed objects straight out of the mapped pack. */
+    private static class BufferInputStream extends InputStream {
+        /** The bytes still to be read. */
+        private final ByteBuffer buf;
+
+        BufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+    }
+}
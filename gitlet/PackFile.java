@@ -0,0 +1,253 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/** Represents a pack file and its index.
+ *  A pack holds many objects in one file, so a repository with a lot of
+ *  history does not need one inode and one open() per object.
+ *
+ *  Pack layout ("xxx.pack"):
+ *      "GPAK" | version (int) | object count (int)
+ *      object contents, in index order
+ *      SHA-1 of everything above (20 bytes)
+ *
+ *  Index layout ("xxx.idx"):
+ *      "GIDX" | version (int)
+ *      fanout: 256 ints, fanout[b] = number of ids whose first byte <= b
+ *      ids: count * 20 raw bytes, sorted
+ *      offsets: count longs, position of each object in the pack
+ *      lengths: count longs, size of each object in the pack
+ *      SHA-1 of the pack (20 bytes)
+ *
+ *  Both files are read through memory mappings, so a lookup is a binary
+ *  search over the mapped index followed by a copy out of the mapped pack.
+ *  @author BillyDu
+ */
+class PackFile {
+    /** Magic number at the start of a pack. */
+    private static final int PACK_MAGIC = 0x4750414b;
+    /** Magic number at the start of an index. */
+    private static final int INDEX_MAGIC = 0x47494458;
+    /** Format version of both files. */
+    private static final int VERSION = 1;
+    /** Length of a raw object id. */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Position of the fanout table in the index. */
+    private static final int FANOUT_START = 8;
+    /** Position of the sorted ids in the index. */
+    private static final int IDS_START = FANOUT_START + 256 * 4;
+
+    /** The pack file. */
+    private final File packFile;
+    /** The mapped index. */
+    private final MappedByteBuffer index;
+    /** The mapped pack, or null if it is too large to map at once. */
+    private final MappedByteBuffer data;
+    /** Channel on the pack, used to map regions of oversized packs. */
+    private final FileChannel channel;
+    /** Number of objects in this pack. */
+    private final int count;
+
+    /** Open the pack PACKFILE described by the index INDEXFILE. */
+    PackFile(File packFile, File indexFile) {
+        this.packFile = packFile;
+        try (RandomAccessFile idx = new RandomAccessFile(indexFile, "r")) {
+            index = idx.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, idx.length());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION) {
+            throw error("Corrupt pack index %s.", indexFile.getName());
+        }
+        count = index.getInt(FANOUT_START + 255 * 4);
+
+        try {
+            channel = new RandomAccessFile(packFile, "r").getChannel();
+            data = channel.size() <= Integer.MAX_VALUE
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    : null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the number of objects in this pack. */
+    int size() {
+        return count;
+    }
+
+    /** Return the pack file itself. */
+    File getPackFile() {
+        return packFile;
+    }
+
+    /** Return the SHA-1 of the I-th object in index order. */
+    String idAt(int i) {
+        byte[] id = new byte[ID_BYTES];
+        index.get(IDS_START + i * ID_BYTES, id);
+        return bytesToSha1(id, 0, ID_BYTES);
+    }
+
+    /** Return the position of the raw id ID in the index, or -1 if this
+     *  pack does not contain it. */
+    int find(byte[] id) {
+        int first = id[0] & 0xff;
+        int lo = first == 0 ? 0 : index.getInt(FANOUT_START + (first - 1) * 4);
+        int hi = index.getInt(FANOUT_START + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareId(mid, id);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Compare the I-th id of the index with the raw id ID. */
+    private int compareId(int i, byte[] id) {
+        int base = IDS_START + i * ID_BYTES;
+        for (int k = 0; k < ID_BYTES; k += 1) {
+            int cmp = Integer.compare(index.get(base + k) & 0xff, id[k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Return the offset in the pack of the I-th object. */
+    private long offsetAt(int i) {
+        return index.getLong(IDS_START + count * ID_BYTES + i * 8);
+    }
+
+    /** Return the length in the pack of the I-th object. */
+    private long lengthAt(int i) {
+        return index.getLong(IDS_START + count * ID_BYTES + count * 8 + i * 8);
+    }
+
+    /** Return a read-only view of the contents of the I-th object. */
+    ByteBuffer slice(int i) {
+        long offset = offsetAt(i);
+        long length = lengthAt(i);
+        if (data != null) {
+            return data.slice((int) offset, (int) length).asReadOnlyBuffer();
+        }
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Release the pack channel. */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Source of object contents while a pack is written. */
+    interface ObjectSource {
+        /** Write the stored contents of the object SHA1 to OUT. */
+        void writeTo(String sha1, OutputStream out) throws IOException;
+    }
+
+    /** Write the objects IDS, which must be sorted, to the pack PACK and the
+     *  index INDEX, streaming each object from SOURCE in turn.
+     *  Returns the hexadecimal SHA-1 of the pack. */
+    static String write(File pack, File index, List<String> ids,
+                        ObjectSource source) {
+        long[] offsets = new long[ids.size()];
+        long[] lengths = new long[ids.size()];
+        byte[] checksum;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            try (OutputStream file = new BufferedOutputStream(
+                    Files.newOutputStream(pack.toPath()))) {
+                /** count the bytes going through, so each object's
+                 * offset and length are known without buffering it. */
+                long[] position = {0};
+                DataOutputStream out = new DataOutputStream(new FilterOutputStream(
+                        new DigestOutputStream(file, md)) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        this.out.write(b);
+                        position[0] += 1;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        this.out.write(b, off, len);
+                        position[0] += len;
+                    }
+                });
+                out.writeInt(PACK_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(ids.size());
+                for (int i = 0; i < ids.size(); i += 1) {
+                    offsets[i] = position[0];
+                    source.writeTo(ids.get(i), out);
+                    lengths[i] = position[0] - offsets[i];
+                }
+                out.flush();
+                checksum = md.digest();
+                file.write(checksum);
+            }
+
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(index.toPath())))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(VERSION);
+                int[] fanout = new int[256];
+                for (String id : ids) {
+                    fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+                }
+                int total = 0;
+                for (int b = 0; b < 256; b += 1) {
+                    total += fanout[b];
+                    out.writeInt(total);
+                }
+                for (String id : ids) {
+                    out.write(sha1ToBytes(id));
+                }
+                for (long offset : offsets) {
+                    out.writeLong(offset);
+                }
+                for (long length : lengths) {
+                    out.writeLong(length);
+                }
+                out.write(checksum);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+        return bytesToSha1(checksum, 0, checksum.length);
+    }
+}
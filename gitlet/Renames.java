@@ -0,0 +1,296 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** Rename detection between the files a change removes and the files it
+ *  adds, each given by its blob id.
+ *
+ *  Files with the same blob are paired first, through a map from blob id
+ *  to the removed files holding it. The rest are compared by content: a
+ *  file is cut into lines (64-byte blocks if it is binary) whose 64-bit
+ *  hashes are kept sorted, along with a MinHash signature of SIGNATURE
+ *  values. The signatures are cut into BANDS bands of ROWS values, and
+ *  only files that agree on a whole band become candidate pairs
+ *  (locality-sensitive hashing), so thousands of files are compared
+ *  without trying every pair. Each candidate is then scored exactly from
+ *  the sorted hashes, as the share of lines in common out of the larger
+ *  file, and the best pairs at or above the threshold are taken first.
+ *  @author BillyDu
+ */
+class Renames {
+    /** Default similarity, in percent, a pair needs to be a rename. */
+    static final int DEFAULT_THRESHOLD = 50;
+
+    /** Number of MinHash values per file. */
+    private static final int SIGNATURE = 32;
+    /** Number of values in one band of a signature. */
+    private static final int ROWS = 2;
+    /** Number of bands in a signature. */
+    private static final int BANDS = SIGNATURE / ROWS;
+    /** Bands shared by more removed files than this are too common to
+     *  tell files apart, and give no candidates. */
+    private static final int MAX_BUCKET = 128;
+    /** Size of the pieces a binary file is cut into. */
+    private static final int BLOCK = 64;
+
+    /** Seeds of the hash functions of a signature. */
+    private static final long[] SEEDS = new long[SIGNATURE];
+
+    static {
+        long seed = 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < SIGNATURE; i += 1) {
+            seed += 0x9e3779b97f4a7c15L;
+            SEEDS[i] = mix(seed);
+        }
+    }
+
+    /** A file found renamed. */
+    static class Rename {
+        /** The path of the removed file. */
+        final String from;
+        /** The path of the added file. */
+        final String to;
+        /** Similarity of the two, in percent. */
+        final int score;
+
+        Rename(String from, String to, int score) {
+            this.from = from;
+            this.to = to;
+            this.score = score;
+        }
+    }
+
+    /** The content sketch of a file. */
+    private static class Sketch {
+        /** The hashes of the lines of the file, sorted. */
+        final long[] pieces;
+        /** The least value of each hash function over PIECES. */
+        final long[] signature = new long[SIGNATURE];
+
+        Sketch(long[] pieces) {
+            this.pieces = pieces;
+            Arrays.fill(signature, Long.MAX_VALUE);
+            for (long piece : pieces) {
+                for (int i = 0; i < SIGNATURE; i += 1) {
+                    signature[i] = Math.min(signature[i], mix(piece ^ SEEDS[i]));
+                }
+            }
+            Arrays.sort(pieces);
+        }
+    }
+
+    /** Return the renames from the files REMOVED to the files ADDED, both
+     *  maps from path to blob id, whose similarity is at least THRESHOLD
+     *  percent, keyed by the path of the added file. Each file is in at
+     *  most one rename. */
+    static SortedMap<String, Rename> detect(Map<String, String> removed,
+                                            Map<String, String> added, int threshold) {
+        SortedMap<String, Rename> renames = new TreeMap<>();
+        if (removed.isEmpty() || added.isEmpty()) {
+            return renames;
+        }
+
+        /** exact renames first: the same blob under another name. among
+         * several removed files with the blob, one with the same base
+         * name is preferred. empty files are too alike to pair. */
+        Map<String, List<String>> byBlob = new HashMap<>();
+        for (Map.Entry<String, String> entry : new TreeMap<>(removed).entrySet()) {
+            byBlob.computeIfAbsent(entry.getValue(), k -> new ArrayList<>()).add(entry.getKey());
+        }
+        List<String> addedLeft = new ArrayList<>();
+        for (Map.Entry<String, String> entry : new TreeMap<>(added).entrySet()) {
+            List<String> sources = byBlob.get(entry.getValue());
+            if (sources == null || sources.isEmpty() || isEmptyBlob(entry.getValue())) {
+                addedLeft.add(entry.getKey());
+                continue;
+            }
+            int pick = 0;
+            for (int i = 0; i < sources.size(); i += 1) {
+                if (baseName(sources.get(i)).equals(baseName(entry.getKey()))) {
+                    pick = i;
+                    break;
+                }
+            }
+            renames.put(entry.getKey(), new Rename(sources.remove(pick), entry.getKey(), 100));
+        }
+        List<String> removedLeft = new ArrayList<>();
+        for (List<String> sources : byBlob.values()) {
+            removedLeft.addAll(sources);
+        }
+        removedLeft.sort(null);
+        if (removedLeft.isEmpty() || addedLeft.isEmpty() || threshold > 100) {
+            return renames;
+        }
+
+        /** sketch every file left, reading blobs on all cores. */
+        int jobs = Runtime.getRuntime().availableProcessors();
+        Sketch[] from = new Sketch[removedLeft.size()];
+        Sketch[] to = new Sketch[addedLeft.size()];
+        parallelFor(jobs, from.length + to.length, i -> {
+            if (i < from.length) {
+                from[i] = sketch(removed.get(removedLeft.get(i)));
+            } else {
+                to[i - from.length] = sketch(added.get(addedLeft.get(i - from.length)));
+            }
+        });
+
+        /** bucket the removed files by each band of their signature. */
+        List<Map<Long, List<Integer>>> bands = new ArrayList<>();
+        for (int band = 0; band < BANDS; band += 1) {
+            Map<Long, List<Integer>> buckets = new HashMap<>();
+            for (int i = 0; i < from.length; i += 1) {
+                if (from[i] != null) {
+                    buckets.computeIfAbsent(bandKey(from[i], band), k -> new ArrayList<>()).add(i);
+                }
+            }
+            bands.add(buckets);
+        }
+
+        /** score the candidates of each added file, each pair once. */
+        List<long[]> pairs = new ArrayList<>();
+        int[] seenBy = new int[from.length];
+        for (int j = 0; j < to.length; j += 1) {
+            if (to[j] == null) {
+                continue;
+            }
+            for (int band = 0; band < BANDS; band += 1) {
+                List<Integer> bucket = bands.get(band).get(bandKey(to[j], band));
+                if (bucket == null || bucket.size() > MAX_BUCKET) {
+                    continue;
+                }
+                for (int i : bucket) {
+                    if (seenBy[i] == j + 1) {
+                        continue;
+                    }
+                    seenBy[i] = j + 1;
+                    int score = score(from[i], to[j], threshold);
+                    if (score >= threshold) {
+                        pairs.add(new long[] {score, i, j});
+                    }
+                }
+            }
+        }
+
+        /** take the best pairs first; on equal scores, pairs that keep
+         * the base name, then in name order. */
+        pairs.sort((x, y) -> {
+            if (x[0] != y[0]) {
+                return Long.compare(y[0], x[0]);
+            }
+            boolean xSame = sameBaseName(removedLeft, addedLeft, x);
+            boolean ySame = sameBaseName(removedLeft, addedLeft, y);
+            if (xSame != ySame) {
+                return xSame ? -1 : 1;
+            }
+            return x[2] != y[2] ? Long.compare(x[2], y[2]) : Long.compare(x[1], y[1]);
+        });
+        boolean[] fromUsed = new boolean[from.length];
+        boolean[] toUsed = new boolean[to.length];
+        for (long[] pair : pairs) {
+            int i = (int) pair[1];
+            int j = (int) pair[2];
+            if (!fromUsed[i] && !toUsed[j]) {
+                fromUsed[i] = true;
+                toUsed[j] = true;
+                renames.put(addedLeft.get(j),
+                        new Rename(removedLeft.get(i), addedLeft.get(j), (int) pair[0]));
+            }
+        }
+        return renames;
+    }
+
+    /** Return the similarity of A and B in percent: the lines they have
+     *  in common, counted with repeats, out of the lines of the larger.
+     *  Returns 0 early if the sizes alone rule out reaching THRESHOLD. */
+    private static int score(Sketch a, Sketch b, int threshold) {
+        long larger = Math.max(a.pieces.length, b.pieces.length);
+        long smaller = Math.min(a.pieces.length, b.pieces.length);
+        if (smaller * 100 < threshold * larger) {
+            return 0;
+        }
+        int common = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.pieces.length && j < b.pieces.length) {
+            if (a.pieces[i] == b.pieces[j]) {
+                common += 1;
+                i += 1;
+                j += 1;
+            } else if (a.pieces[i] < b.pieces[j]) {
+                i += 1;
+            } else {
+                j += 1;
+            }
+        }
+        return (int) (common * 100 / larger);
+    }
+
+    /** Return the sketch of the blob SHA1, or null if it is empty. */
+    private static Sketch sketch(String sha1) {
+        byte[] data = ObjectStore.read(sha1);
+        if (data == null) {
+            throw error("Missing blob %s.", sha1);
+        }
+        if (data.length == 0) {
+            return null;
+        }
+        boolean binary = LineDiff.isBinary(data);
+        long[] pieces = new long[16];
+        int count = 0;
+        long h = 0xcbf29ce484222325L;
+        for (int p = 0; p < data.length; p += 1) {
+            h = (h ^ (data[p] & 0xff)) * 0x100000001b3L;
+            boolean end = binary ? (p + 1) % BLOCK == 0 : data[p] == '\n';
+            if (end || p == data.length - 1) {
+                if (count == pieces.length) {
+                    pieces = Arrays.copyOf(pieces, 2 * count);
+                }
+                pieces[count] = h;
+                count += 1;
+                h = 0xcbf29ce484222325L;
+            }
+        }
+        return new Sketch(Arrays.copyOf(pieces, count));
+    }
+
+    /** Return the key of band BAND of the signature of SKETCH. */
+    private static long bandKey(Sketch sketch, int band) {
+        long key = band;
+        for (int r = 0; r < ROWS; r += 1) {
+            key = mix(key ^ sketch.signature[band * ROWS + r]);
+        }
+        return key;
+    }
+
+    /** Check if the blob SHA1 is empty, from its header. */
+    private static boolean isEmptyBlob(String sha1) {
+        ObjectStore.Header header = ObjectStore.readHeader(sha1);
+        return header != null && header.length == 0;
+    }
+
+    /** Check if the removed and added files of PAIR have the same name
+     *  outside their directories. */
+    private static boolean sameBaseName(List<String> removed, List<String> added, long[] pair) {
+        return baseName(removed.get((int) pair[1])).equals(baseName(added.get((int) pair[2])));
+    }
+
+    /** Return the last component of PATH. */
+    private static String baseName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /** Return X with its bits mixed (the finalizer of SplitMix64). */
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+}
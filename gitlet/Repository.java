@@ -1,8 +1,16 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
 
 import static gitlet.Utils.*;
 
@@ -57,6 +65,12 @@ public class Repository {
      */
     public static final File HEAD = join(GITLET_DIR, "HEAD");
 
+    /**
+     * How long gc keeps unreachable objects after they were written:
+     * two weeks.
+     */
+    public static final long GC_GRACE_MILLIS = 14L * 24 * 60 * 60 * 1000;
+
 
     /* TODO: fill in the rest of this class. */
 
@@ -103,19 +117,32 @@ public class Repository {
         /** read the staging area. */
         Stage stage = readStage();
 
-        /** stage the file. */
+        /** stage the file, skipping the hash if its stat data is cached. */
         Commit currentCommit = getCurrentCommit();
-        stageSingleFile(fileName, stage, currentCommit);
+        StatCache statCache = StatCache.read();
+        stageSingleFile(fileName, stage, currentCommit, statCache);
 
         /** save the staging area. */
-        Utils.writeObject(STAGING, stage);
+        writeStage(stage);
+        statCache.write();
     }
 
     /**
      * gitlet add .
-     * add all files in the current working directory to the staging area.
+     * add all files in the current working directory to the staging area,
+     * using one thread per available processor.
      */
     public static void addAll() {
+        addAll(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * gitlet add . --jobs [n]
+     * add all files in the current working directory to the staging area.
+     *
+     * @param jobs: the number of threads that hash and store files.
+     */
+    public static void addAll(int jobs) {
         /** check if the repository is initialized. */
         checkInit();
 
@@ -128,23 +155,40 @@ public class Repository {
         /** initialize an ignore list */
         GitletIgnore ignore = new GitletIgnore();
 
-        /** get all files in the current working directory. */
-        List<String> fileNames = plainFilenamesIn(CWD);
-        if (fileNames == null) {
-            throw error("No files to add.");
-        }
+        /** get all files in the working directory and below, with
+         * their stat data, scanning directories on JOBS threads. */
+        SortedMap<String, StatCache.Stat> working = WorkingTree.scan(ignore, jobs);
 
-        /** add each file to the staging area. */
-        for (String fileName : fileNames) {
+        List<String> toAdd = new ArrayList<>();
+        for (String fileName : working.keySet()) {
             /** ignore hidden files in .gitletIgnore */
-            if (fileName.startsWith(".")) continue;
+            if (baseName(fileName).startsWith(".")) continue;
             if (ignore.isIgnored(fileName)) continue;
 
-            stageSingleFile(fileName, stage, currentCommit);
+            toAdd.add(fileName);
+        }
+
+        /** hash and store the files on JOBS threads. only files whose
+         * stat data changed since they were last hashed are read. each
+         * task only reads the stat cache and fills in its own slot. */
+        StatCache statCache = StatCache.read();
+        statCache.retain(working.keySet());
+        String[] blobs = new String[toAdd.size()];
+        parallelFor(jobs, toAdd.size(), i -> {
+            String fileName = toAdd.get(i);
+            blobs[i] = storeWorkingFile(fileName, working.get(fileName), statCache);
+        });
+
+        /** update the stage and the cache on this thread, in name order,
+         * so the result does not depend on how the tasks were run. */
+        for (int i = 0; i < toAdd.size(); i += 1) {
+            statCache.update(toAdd.get(i), working.get(toAdd.get(i)), blobs[i]);
+            stageBlob(toAdd.get(i), blobs[i], stage, currentCommit);
         }
 
         /** save the staging area. */
-        Utils.writeObject(STAGING, stage);
+        writeStage(stage);
+        statCache.write();
     }
 
     /**
@@ -165,8 +209,15 @@ public class Repository {
         checkInit();
 
         /** read the staging area. */
-        Stage stage = readStage();
+        commitStage(readStage(), message, secondParentSHA1);
+    }
 
+    /**
+     * aux function: create a new commit with the files in STAGE, which
+     * need not have been written to disk, and clear the staging area.
+     * @param secondParentSHA1: the second parent commit SHA1 in merge.
+     */
+    private static void commitStage(Stage stage, String message, String secondParentSHA1) {
         /** check if there are staged files. */
         if (stage.getAddFiles().isEmpty() && stage.getRemoveFiles().isEmpty()) {
             throw error("No changes added to the commit.");
@@ -180,19 +231,14 @@ public class Repository {
         /** get the current commit. */
         Commit currentCommit = getCurrentCommit();
 
-        /** create a new blob mapping for the new commit. */
-        Map<String, String> newBlobMapping = new HashMap<>(currentCommit.getBlobs());
-
-        /** add the staged files and remove the removed files.
-         * to the new blob mapping. */
-        for (String fileName : stage.getAddFiles().keySet()) {
-            String blobSHA1 = stage.getAddFiles().get(fileName);
-            newBlobMapping.put(fileName, blobSHA1);
-        }
-
+        /** apply the staged files and the removed files to the tree
+         * of the current commit. only the directories on their paths
+         * are rewritten; every other subtree is shared by id. */
+        Map<String, String> changes = new HashMap<>(stage.getAddFiles());
         for (String fileName : stage.getRemoveFiles()) {
-            newBlobMapping.remove(fileName);
+            changes.put(fileName, null);
         }
+        String rootTree = Tree.update(treeOf(currentCommit), changes);
 
         /** create a new commit object. */
         List<String> parentCommits = new ArrayList<>();
@@ -203,7 +249,7 @@ public class Repository {
             parentCommits.add(secondParentSHA1);
         }
 
-        Commit newCommit = new Commit(message, parentCommits, newBlobMapping);
+        Commit newCommit = new Commit(message, parentCommits, rootTree);
 
         /** save the new commit to the objects directory. */
         String newCommitSHA1 = saveCommit(newCommit);
@@ -249,12 +295,12 @@ public class Repository {
             stage.removeFile(fileName);
 
             if (file.exists()) {
-                Utils.restrictedDelete(file);
+                deleteWorkingFile(fileName);
             }
         }
 
         /** save the staging area. */
-        Utils.writeObject(STAGING, stage);
+        writeStage(stage);
     }
 
     /**
@@ -310,15 +356,18 @@ public class Repository {
         }
         System.out.println();
 
-        /** print the modifications not staged for commit. */
-        System.out.println("=== Modifications Not Staged For Commit ===");
+        /** print the modifications not staged for commit and the
+         * untracked files, found in one pass over the names. */
+        List<String> modifiedFiles = new ArrayList<>();
+        List<String> untrackedFiles = new ArrayList<>();
+        findWorkingChanges(stage, getCurrentCommit(), modifiedFiles, untrackedFiles);
 
+        System.out.println("=== Modifications Not Staged For Commit ===");
+        for (String file : modifiedFiles) {
+            System.out.println(file);
+        }
         System.out.println();
 
-
-        /** print the untracked files */
-        List<String> untrackedFiles = findUntrackedFiles(getCurrentCommit());
-        Collections.sort(untrackedFiles);
         System.out.println("=== Untracked Files ===");
         for (String file : untrackedFiles) {
             System.out.println(file);
@@ -327,29 +376,104 @@ public class Repository {
     }
 
     /**
-     * gitlet log
+     * aux function for status: compare the working files with the stage
+     * and the current commit, in one pass over all of their names in
+     * sorted order.
+     * a file is modified if it differs from its staged version, or from
+     * its committed version when it is not staged; it is deleted if it is
+     * gone but staged, or committed and not staged for removal. a file
+     * is untracked if it is neither staged nor tracked, or if it is
+     * staged for removal but exists again.
+     *
+     * @param modified: receives "name (modified)" and "name (deleted)".
+     * @param untracked: receives the names of untracked files.
+     */
+    private static void findWorkingChanges(Stage stage, Commit currentCommit,
+                                           List<String> modified, List<String> untracked) {
+        GitletIgnore ignore = new GitletIgnore();
+        SortedMap<String, StatCache.Stat> working = WorkingTree.scan(ignore);
+        Map<String, String> trackedBlobs = currentCommit.getBlobs();
+        Map<String, String> addFiles = stage.getAddFiles();
+        Set<String> removeFiles = stage.getRemoveFiles();
+
+        TreeSet<String> allNames = new TreeSet<>(working.keySet());
+        allNames.addAll(trackedBlobs.keySet());
+        allNames.addAll(addFiles.keySet());
+
+        StatCache statCache = StatCache.read();
+        for (String fileName : allNames) {
+            String stagedSHA1 = addFiles.get(fileName);
+            String trackedSHA1 = removeFiles.contains(fileName)
+                    ? null : trackedBlobs.get(fileName);
+            String expectedSHA1 = stagedSHA1 != null ? stagedSHA1 : trackedSHA1;
+
+            StatCache.Stat stat = working.get(fileName);
+            if (stat == null) {
+                if (expectedSHA1 != null) {
+                    modified.add(fileName + " (deleted)");
+                }
+            } else if (expectedSHA1 == null) {
+                if (!ignore.isIgnored(fileName)) {
+                    untracked.add(fileName);
+                }
+            } else if (!sameContents(fileName, stat, expectedSHA1, statCache)) {
+                modified.add(fileName + " (modified)");
+            }
+        }
+
+        /** keep what was hashed, so the next status is cheaper. */
+        statCache.write();
+    }
+
+    /**
+     * aux function for status: check if the working file FILENAME, whose
+     * stat data is STAT, holds the blob BLOBSHA1. the stat data is checked
+     * against the stat cache first, then the size against the blob length
+     * in the object header; only if both are inconclusive is the file
+     * read and hashed.
+     */
+    private static boolean sameContents(String fileName, StatCache.Stat stat,
+                                        String blobSHA1, StatCache statCache) {
+        File file = join(CWD, fileName);
+        String cachedSHA1 = statCache.lookup(fileName, stat);
+        if (cachedSHA1 != null) {
+            return cachedSHA1.equals(blobSHA1);
+        }
+        ObjectStore.Header header = ObjectStore.readHeader(blobSHA1);
+        if (header != null && header.length >= 0 && header.length != stat.size) {
+            return false;
+        }
+        String fileSHA1 = ObjectStore.hashFile(file);
+        statCache.update(fileName, stat, fileSHA1);
+        return fileSHA1.equals(blobSHA1);
+    }
+
+    /**
+     * gitlet log [--oneline]
      * show the commit history.
+     *
+     * @param oneline: print each commit as its shortest unambiguous
+     *                 id (at least 7 digits) and the message.
      */
-    public static void log() {
+    public static void log(boolean oneline) {
         /** check if the repository is initialized. */
         checkInit();
 
-        /** get the current commit SHA1. */
-        String currentCommitSHA1 = readHEAD();
-        Commit currentCommit = getCommitBySHA1(currentCommitSHA1);
+        /** traverse the first parents in the commit graph, loading
+         * each commit only to print it. */
+        for (int pos = CommitGraph.position(readHEAD()); pos >= 0;
+             pos = CommitGraph.firstParent(pos)) {
+            String currentCommitSHA1 = CommitGraph.id(pos);
+            Commit currentCommit = getCommitBySHA1(currentCommitSHA1);
 
-        /** traverse the commit history. */
-        while (currentCommit != null) {
             /** get the commit info. */
-            currentCommit.printCommit(currentCommitSHA1);
-
-            /** move to the parent commit. */
-            String parentSHA1 = currentCommit.getFirstParent();
-            if (parentSHA1 == null) {
-                break;
+            if (oneline) {
+                int length = CommitIndex.uniquePrefixLength(currentCommitSHA1, 7);
+                System.out.println(currentCommitSHA1.substring(0, length)
+                        + " " + currentCommit.getMessage());
+            } else {
+                currentCommit.printCommit(currentCommitSHA1);
             }
-            currentCommitSHA1 = parentSHA1;
-            currentCommit = getCommitBySHA1(currentCommitSHA1);
         }
     }
 
@@ -366,40 +490,34 @@ public class Repository {
         /** check if the repository is initialized. */
         checkInit();
 
-        /** get the latest version commit of every branch. */
-        List<String> allBranchHeadName = plainFilenamesIn(join(REFS_DIR, "heads"));
-        List<String> branchHeadCommits = new ArrayList<>();
-        for (String branchName : allBranchHeadName) {
-            File headFile = join(REFS_DIR, "heads", branchName);
-            branchHeadCommits.add(readContentsAsString(headFile).trim());
+        /** enumerate the commits reachable from the latest version
+         * commit of every branch, newest in the graph first, and load
+         * only the commits printed. */
+        BitSet reachable = reachableCommits();
+        for (int pos = reachable.length() - 1; pos >= 0; pos = reachable.previousSetBit(pos - 1)) {
+            String commitSHA1 = CommitGraph.id(pos);
+            getCommitBySHA1(commitSHA1).printCommit(commitSHA1);
         }
+    }
 
-        /** use a set to avoid duplicate commits. */
-        Set<String> visitedCommits = new HashSet<>();
-
-        /** use queue to store every commit hash to visit. */
-        Queue<String> commitQueue = new LinkedList<>(branchHeadCommits);
-
-        while (!commitQueue.isEmpty()) {
-            /** get the current commit of the branch. */
-            String currentCommitSHA1 = commitQueue.poll();
-            Commit currentCommit = getCommitBySHA1(currentCommitSHA1);
-
-            if (visitedCommits.contains(currentCommitSHA1))
-                continue;
-
-            /** get the commit info. */
-            currentCommit.printCommit(currentCommitSHA1);
-            visitedCommits.add(currentCommitSHA1);
+    /**
+     * aux function: return the graph positions of the commits reachable
+     * from any branch head, using the reachability bitmaps if there are
+     * any (see CommitBitmaps).
+     */
+    private static BitSet reachableCommits() {
+        return CommitBitmaps.reachable(branchHeadPositions());
+    }
 
-            /** add parent commit(s) to the queue. */
-            if (currentCommit.getFirstParent() != null) {
-                commitQueue.add(currentCommit.getFirstParent());
-            }
-            if (currentCommit.getSecondParent() != null) {
-                commitQueue.add(currentCommit.getSecondParent());
-            }
+    /**
+     * aux function: return the graph positions of the branch heads.
+     */
+    private static List<Integer> branchHeadPositions() {
+        List<Integer> heads = new ArrayList<>();
+        for (String head : getBranchHeads()) {
+            heads.add(CommitGraph.position(head));
         }
+        return heads;
     }
 
     /**
@@ -472,19 +590,138 @@ public class Repository {
         Map<String, String> targetBlobs = targetCommit.getBlobs();
 
         Commit currentCommit = getCurrentCommit();
-        Map<String, String> currentBlobs = currentCommit.getBlobs();
 
-        /** check for untracked files that would be overwritten. */
-        checkUntrackedConflict(targetCommit, currentCommit);
+        /** check for untracked files that would be overwritten. the same
+         * scan tells which working files are still as last written. */
+        SortedMap<String, StatCache.Stat> working = WorkingTree.scan(new GitletIgnore());
+        checkUntrackedConflict(targetCommit, currentCommit, working.keySet());
+
+        /** diff the two commits: delete the files only the current
+         * commit tracks, and write the files whose blob differs. a file
+         * with the same blob in both is left alone unless it is missing
+         * or, where the stat cache cannot vouch for it, its size shows
+         * it was edited; an edit that keeps the size is carried over,
+         * as git does. */
+        StatCache statCache = StatCache.read();
+        Map<String, String> changes = diffCommits(currentCommit, targetCommit);
+        List<String> toDelete = new ArrayList<>();
+        List<String> toWrite = new ArrayList<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                toDelete.add(change.getKey());
+            } else {
+                toWrite.add(change.getKey());
+            }
+        }
+        for (Map.Entry<String, String> entry : targetBlobs.entrySet()) {
+            String fileName = entry.getKey();
+            if (!changes.containsKey(fileName)
+                    && needsRestore(fileName, working.get(fileName),
+                            entry.getValue(), statCache)) {
+                toWrite.add(fileName);
+            }
+        }
+
+        /** the writes and deletes are I/O bound, so run them on a pool
+         * twice as large as the number of processors. every new file is
+         * first written in full under .gitlet, where a missing blob or
+         * a full disk stops the checkout before the working directory
+         * is touched; then the deletes are done, and each new file is
+         * renamed into place. */
+        int jobs = 2 * Runtime.getRuntime().availableProcessors();
+        List<String> writeBlobs = new ArrayList<>();
+        for (String fileName : toWrite) {
+            writeBlobs.add(targetBlobs.get(fileName));
+        }
+        File[] tmps = prepareBlobs(writeBlobs, jobs);
+        StatCache.Stat[] stats = new StatCache.Stat[toWrite.size()];
+        try {
+            parallelFor(jobs, toDelete.size(),
+                    i -> deleteWorkingFile(toDelete.get(i)));
+            parallelFor(jobs, toWrite.size(), i -> {
+                String fileName = toWrite.get(i);
+                moveToCWD(tmps[i], fileName);
+                stats[i] = StatCache.stat(join(CWD, fileName));
+            });
+        } finally {
+            deleteTempFiles(tmps);
+        }
+
+        /** remember what was written, so the next checkout can skip it. */
+        for (int i = 0; i < toWrite.size(); i += 1) {
+            statCache.update(toWrite.get(i), stats[i], targetBlobs.get(toWrite.get(i)));
+        }
+        statCache.write();
+    }
+
+    /**
+     * aux function: return the files that differ between the commits
+     * FROM and TO, mapped to their blob in TO, or to null if TO does not
+     * track them. if both commits have trees, subtrees they share are
+     * skipped without being read.
+     */
+    private static Map<String, String> diffCommits(Commit from, Commit to) {
+        if (from.getTree() != null && to.getTree() != null) {
+            return Tree.diff(from.getTree(), to.getTree());
+        }
+        Map<String, String> fromBlobs = from.getBlobs();
+        Map<String, String> toBlobs = to.getBlobs();
+        Map<String, String> changes = new TreeMap<>();
+        for (String fileName : fromBlobs.keySet()) {
+            if (!toBlobs.containsKey(fileName)) {
+                changes.put(fileName, null);
+            }
+        }
+        for (Map.Entry<String, String> entry : toBlobs.entrySet()) {
+            if (!entry.getValue().equals(fromBlobs.get(entry.getKey()))) {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * aux function: return the root tree of COMMIT, building one from its
+     * blobs if it is from before trees existed.
+     */
+    private static String treeOf(Commit commit) {
+        if (commit.getTree() != null) {
+            return commit.getTree();
+        }
+        return Tree.update(null, commit.getBlobs());
+    }
 
-        /** delete files tracked in current commit
-         * but not in target commit. */
-        clearOldTrackedFiles(targetCommit, currentCommit);
+    /**
+     * aux function: check if checkout must write the working file
+     * FILENAME, whose stat data is STAT (null if it does not exist), to
+     * hold the blob BLOBSHA1 that both commits have: if the file is
+     * missing, or if the stat cache cannot vouch for it and its size is
+     * not that of the blob. a blob whose size is not recorded, from
+     * before object headers, is always written.
+     */
+    private static boolean needsRestore(String fileName, StatCache.Stat stat,
+                                        String blobSHA1, StatCache statCache) {
+        if (stat == null) {
+            return true;
+        }
+        if (isUnchanged(fileName, stat, blobSHA1, statCache)) {
+            return false;
+        }
+        ObjectStore.Header header = ObjectStore.readHeader(blobSHA1);
+        return header == null || header.length < 0 || header.length != stat.size;
+    }
 
-        /** restore all files in the commit to the working directory. */
-        for (String fileName : targetBlobs.keySet()) {
-            restoreFilesFromCommit(targetCommit, fileName);
+    /**
+     * aux function: check if the working file FILENAME, whose stat data
+     * is STAT (null if it does not exist), is known to hold the blob
+     * BLOBSHA1, from its stat data alone.
+     */
+    private static boolean isUnchanged(String fileName, StatCache.Stat stat,
+                                       String blobSHA1, StatCache statCache) {
+        if (stat == null) {
+            return false;
         }
+        return blobSHA1.equals(statCache.lookup(fileName, stat));
     }
 
     /**
@@ -527,8 +764,9 @@ public class Repository {
             throw error("Cannot remove the current branch.");
         }
 
-        /** delete the branch ref file. */
-        Utils.restrictedDelete(branchRefFile);
+        /** delete the branch ref file. restrictedDelete only deletes
+         * files in the working directory, so it cannot be used here. */
+        branchRefFile.delete();
     }
 
     /**
@@ -546,8 +784,6 @@ public class Repository {
         /** get full hash, prevent store 6 digits prefix into head file. */
         String fullCommitSHA1;
         if (commitID.length() < UID_LENGTH) {
-            Commit commit = getCommitByPrefixSHA1(commitID);
-            // Need to get the full SHA1 from the file system
             fullCommitSHA1 = findFullSHA1(commitID);
         } else {
             /** check the commitID is valid or not. */
@@ -565,181 +801,989 @@ public class Repository {
         clearStage();
     }
 
-    /** aux function: find the full SHA1 from a prefix. */
+    /** aux function: find the full SHA1 of the commit with a prefix. */
     private static String findFullSHA1(String prefix) {
-        String dirName = prefix.substring(0, 2);
-        String restPrefix = prefix.substring(2);
-        File commitDir = join(OBJECTS_DIR, dirName);
-
-        List<String> allFiles = plainFilenamesIn(commitDir);
-        for (String fileName : allFiles) {
-            if (fileName.startsWith(restPrefix)) {
-                String fullSHA1 = dirName + fileName;
-                if (isCommit(fullSHA1)) {
-                    return fullSHA1;
-                }
-            }
+        if (prefix.length() < 2) {
+            throw error("Commit id must be at least 2 characters.");
+        }
+
+        /** binary search the commit index, so blobs are never looked at. */
+        List<String> candidates = CommitIndex.withPrefix(prefix);
+
+        /** check if there are 2 or more candidates. */
+        if (candidates.isEmpty()) {
+            throw error("No commit with that id exists.");
+        } else if (candidates.size() > 1) {
+            throw error("Ambiguous ID prefix: more than one commit matches.");
         }
-        throw error("No commit with that id exists.");
+        return candidates.get(0);
     }
 
     /**
-     * gitlet merge [branch name]
-     * merge the given branch into the current branch.
+     * gitlet diff [--stat] [--histogram]
+     * show the changes in the working files that are not staged: each
+     * tracked file against its staged version, or its committed version
+     * when it is not staged. untracked files are not shown.
      *
+     * @param stat:      print the number of changed lines of each file
+     *                   instead of the hunks.
+     * @param histogram: use the histogram diff instead of Myers.
      */
-    public static void merge(String branchName) {
+    public static void diffWorking(boolean stat, boolean histogram) {
         /** check if the repository is initialized. */
         checkInit();
 
-        /** --- Stage 1 ---
-         * check pre-conditions for merge operation.
-         */
-        File branchRefFile = join(REFS_DIR, "heads", branchName);
         Stage stage = readStage();
-
-        /** check if the branch exists. */
-        if (!branchRefFile.exists()) {
-            throw error("A branch with that name does not exist.");
-        }
-        /** check if the branch is the current branch. */
-        if (isCurrentBranch(branchName)) {
-            throw error("Cannot merge a branch with itself.");
-        }
-        /** check if the staging area is not empty. */
-        if (!stage.getAddFiles().isEmpty() || !stage.getRemoveFiles().isEmpty()) {
-            throw error("You have uncommitted changes.");
+        Map<String, String> trackedBlobs = getCurrentCommit().getBlobs();
+        Map<String, String> addFiles = stage.getAddFiles();
+        TreeSet<String> names = new TreeSet<>(trackedBlobs.keySet());
+        names.removeAll(stage.getRemoveFiles());
+        names.addAll(addFiles.keySet());
+
+        /** the stat cache spares reading files that did not change. */
+        StatCache statCache = StatCache.read();
+        SortedMap<String, String> changed = new TreeMap<>();
+        for (String fileName : names) {
+            String expectedSHA1 = addFiles.getOrDefault(fileName, trackedBlobs.get(fileName));
+            File file = join(CWD, fileName);
+            if (!file.isFile()
+                    || !sameContents(fileName, StatCache.stat(file), expectedSHA1, statCache)) {
+                changed.put(fileName, expectedSHA1);
+            }
         }
-        /** check untracked files that would be overwritten. */
-        String branchCommitSHA1 = Utils.readContentsAsString(branchRefFile).trim();
-        Commit branchCommit = getCommitBySHA1(branchCommitSHA1);
-        Commit currentCommit = getCurrentCommit();
-        checkUntrackedConflict(branchCommit, currentCommit);
+        statCache.write();
 
-        /** --- Stage 2 ---
-         * find the split point commit.
-         */
-        String currentCommitSHA1 = readHEAD();
-        Commit splitPoint = findSplitPoint(currentCommitSHA1, branchCommitSHA1);
+        /** untracked files are not shown, so nothing is renamed. */
+        printDiff(changed, fileName -> {
+            File file = join(CWD, fileName);
+            return file.isFile() ? readContents(file) : null;
+        }, new TreeMap<>(), stat, histogram);
+    }
 
-        /** handle special cases. */
-        if (splitPoint == null) {
-            throw error("No splitPoint found.");
-        }
+    /**
+     * gitlet diff --cached [--stat] [--histogram] [--find-renames=N | --no-renames]
+     * show the changes staged for the next commit, against the current
+     * commit.
+     *
+     * @param renameThreshold: the similarity, in percent, for a removed
+     *                         and an added file to be shown as a rename,
+     *                         or -1 not to look for renames.
+     */
+    public static void diffStaged(boolean stat, boolean histogram, int renameThreshold) {
+        /** check if the repository is initialized. */
+        checkInit();
 
-        if (splitPoint == branchCommit) {
-            System.out.println("Given branch is an ancestor of the current branch.");
-            return;
+        Stage stage = readStage();
+        Commit currentCommit = getCurrentCommit();
+        SortedMap<String, String> changed = new TreeMap<>();
+        Map<String, String> stagedBlobs = new HashMap<>();
+        for (Map.Entry<String, String> entry : stage.getAddFiles().entrySet()) {
+            String trackedSHA1 = currentCommit.getBlobSHA1(entry.getKey());
+            if (!entry.getValue().equals(trackedSHA1)) {
+                changed.put(entry.getKey(), trackedSHA1);
+                stagedBlobs.put(entry.getKey(), entry.getValue());
+            }
         }
-
-        if (splitPoint == currentCommit) {
-            checkoutCommit(branchCommitSHA1);
-            saveHead(branchCommitSHA1);
-            System.out.println("Current branch fast-forwarded.");
-            return;
+        for (String fileName : stage.getRemoveFiles()) {
+            changed.put(fileName, currentCommit.getBlobSHA1(fileName));
         }
 
-        /** --- Stage 3 ---
-         * perform the merge operation.
-         * this includes 8 cases.
-         */
-         boolean isConflict = handleMergeCases(splitPoint, currentCommit, branchCommit, branchName);
-
-         /** --- Stage 4 ---
-          * create a new merge commit.
-          */
-         String mergeMessage = "Merged " + branchName + " into "
-                 + getCurrentBranchName() + ".";
-         commit(mergeMessage, branchCommitSHA1);
-
-         if (isConflict) {
-             System.out.println("Encountered a merge conflict.");
-         }
+        printDiff(changed, fileName -> stagedBlobs.containsKey(fileName)
+                ? getBlobContent(stagedBlobs.get(fileName)) : null,
+                findDiffRenames(changed, stagedBlobs, renameThreshold), stat, histogram);
     }
 
     /**
-     * aux function: check if the repository is initialized.
+     * gitlet diff [--stat] [--histogram] [--find-renames=N | --no-renames]
+     *             [commit id] [commit id]
+     * show the changes from the commit FROMID to the commit TOID.
      */
-    private static void checkInit() {
-        if (!GITLET_DIR.exists()) {
-            throw error("Not in an initialized Gitlet directory.");
+    public static void diff(String fromID, String toID, boolean stat, boolean histogram,
+                            int renameThreshold) {
+        /** check if the repository is initialized. */
+        checkInit();
+
+        Commit from = fromID.length() == UID_LENGTH
+                ? getCommitBySHA1(fromID) : getCommitByPrefixSHA1(fromID);
+        Commit to = toID.length() == UID_LENGTH
+                ? getCommitBySHA1(toID) : getCommitByPrefixSHA1(toID);
+
+        /** shared subtrees are skipped, so only changed files are read. */
+        Map<String, String> changes = diffCommits(from, to);
+        SortedMap<String, String> changed = new TreeMap<>();
+        for (String fileName : changes.keySet()) {
+            changed.put(fileName, from.getBlobSHA1(fileName));
         }
+
+        printDiff(changed, fileName -> changes.get(fileName) == null
+                ? null : getBlobContent(changes.get(fileName)),
+                findDiffRenames(changed, changes, renameThreshold), stat, histogram);
     }
 
     /**
-     * aux function: read the staging area.
+     * aux function for diff: return the renames among the files CHANGED,
+     * mapped to their old blob, whose new blobs are in NEWBLOBS, keyed by
+     * new name; none if THRESHOLD is negative.
      */
-    public static Stage readStage() {
-        if (!STAGING.exists()) {
-            return new Stage();
+    private static SortedMap<String, Renames.Rename> findDiffRenames(
+            SortedMap<String, String> changed, Map<String, String> newBlobs, int threshold) {
+        if (threshold < 0) {
+            return new TreeMap<>();
         }
-        return Utils.readObject(STAGING, Stage.class);
+        Map<String, String> removed = new HashMap<>();
+        Map<String, String> added = new HashMap<>();
+        for (Map.Entry<String, String> entry : changed.entrySet()) {
+            String newBlob = newBlobs.get(entry.getKey());
+            if (entry.getValue() != null && newBlob == null) {
+                removed.put(entry.getKey(), entry.getValue());
+            } else if (entry.getValue() == null && newBlob != null) {
+                added.put(entry.getKey(), newBlob);
+            }
+        }
+        return Renames.detect(removed, added, threshold);
     }
 
     /**
-     * aux function: stage a single file.
+     * aux function for diff: print the changes to the files CHANGED, each
+     * mapped to its old blob (null if it is new), whose new contents
+     * NEWCONTENTS returns (null if it is gone), as a unified diff with
+     * three lines of context, or as a summary of changed lines with STAT.
+     * files that look binary are only reported as differing. a new file
+     * in RENAMES is shown against the file it was renamed from, which is
+     * not shown on its own.
      */
-    private static void stageSingleFile(String fileName, Stage stage, Commit currentCommit) {
-        File file = join(CWD, fileName);
-        if (!file.exists()) {
-            throw error("File does not exist.");
+    private static void printDiff(SortedMap<String, String> changed,
+                                  Function<String, byte[]> newContents,
+                                  SortedMap<String, Renames.Rename> renames,
+                                  boolean stat, boolean histogram) {
+        Set<String> renamedFrom = new HashSet<>();
+        for (Renames.Rename rename : renames.values()) {
+            renamedFrom.add(rename.from);
         }
-
-        /** read the file content and create a blob object. */
-        byte[] fileContent = Utils.readContents(file);
-        String fileSHA1 = Utils.sha1(fileContent);
-
-        if (currentCommit != null && currentCommit.isTracked(fileName) &&
-                currentCommit.getBlobSHA1(fileName).equals(fileSHA1)) {
-
-            /** Situation A: Revoke Changes
-             * If the file is the same as the one in the current commit,
-             * do not stage it and remove it from the staging area.
-             * If it is staged for removal, unstage it.
-             */
-            if (stage.isAdded(fileName)) {
-                stage.unstageFile(fileName);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<String> statNames = new ArrayList<>();
+        List<String> statCounts = new ArrayList<>();
+        List<int[]> statLines = new ArrayList<>();
+        for (Map.Entry<String, String> entry : changed.entrySet()) {
+            String fileName = entry.getKey();
+            if (renamedFrom.contains(fileName)) {
+                continue;
             }
-
-            if (stage.isRemoved(fileName)) {
-                stage.unRemoveFile(fileName);
+            Renames.Rename rename = renames.get(fileName);
+            String oldFileName = rename == null ? fileName : rename.from;
+            String oldBlob = rename == null ? entry.getValue() : changed.get(rename.from);
+            byte[] before = oldBlob == null ? null : getBlobContent(oldBlob);
+            byte[] after = newContents.apply(fileName);
+            byte[] oldBytes = before == null ? new byte[0] : before;
+            byte[] newBytes = after == null ? new byte[0] : after;
+            boolean binary = LineDiff.isBinary(oldBytes) || LineDiff.isBinary(newBytes);
+
+            LineDiff.Lines[] lines = null;
+            List<LineDiff.Edit> edits = null;
+            if (!binary) {
+                lines = LineDiff.split(oldBytes, newBytes);
+                edits = histogram
+                        ? LineDiff.histogram(lines[0].ids, lines[1].ids)
+                        : LineDiff.diff(lines[0].ids, lines[1].ids);
             }
-        } else {
 
-            /** Situation B: New Changes
-             * If the file is different from the one in the current commit,
-             * or is a new file, stage it for addition.
-             * If it is staged for removal, unstage it.
-             */
-            stage.addFile(fileName, fileSHA1);
+            /** the summary only needs the number of lines, not hunks. */
+            if (stat) {
+                statNames.add(rename == null ? fileName : oldFileName + " => " + fileName);
+                if (binary) {
+                    statCounts.add("Bin " + oldBytes.length + " -> " + newBytes.length + " bytes");
+                    statLines.add(null);
+                } else {
+                    int[] counts = LineDiff.count(edits);
+                    statCounts.add(Integer.toString(counts[0] + counts[1]));
+                    statLines.add(counts);
+                }
+                continue;
+            }
 
-            if (stage.isRemoved(fileName)) {
-                stage.unRemoveFile(fileName);
+            String oldName = before == null ? "/dev/null" : "a/" + oldFileName;
+            String newName = after == null ? "/dev/null" : "b/" + fileName;
+            StringBuilder header = new StringBuilder();
+            header.append("diff --git a/").append(oldFileName).append(" b/").append(fileName).append("\n");
+            if (rename != null) {
+                header.append("similarity index ").append(rename.score).append("%\n");
+                header.append("rename from ").append(oldFileName).append("\n");
+                header.append("rename to ").append(fileName).append("\n");
+            } else if (before == null) {
+                header.append("new file\n");
+            } else if (after == null) {
+                header.append("deleted file\n");
+            }
+            if (binary && !Arrays.equals(oldBytes, newBytes)) {
+                header.append("Binary files ").append(oldName).append(" and ")
+                        .append(newName).append(" differ\n");
+            } else if (!edits.isEmpty()) {
+                header.append("--- ").append(oldName).append("\n");
+                header.append("+++ ").append(newName).append("\n");
+            }
+            out.writeBytes(header.toString().getBytes(StandardCharsets.UTF_8));
+            if (!binary) {
+                LineDiff.unified(out, lines[0], lines[1], edits, 3);
             }
+        }
 
-            /** save the blob object to the objects directory. */
-            saveBlob(fileContent);
+        if (stat && !statNames.isEmpty()) {
+            printDiffStat(statNames, statCounts, statLines);
         }
+        System.out.write(out.toByteArray(), 0, out.size());
+        System.out.flush();
     }
 
     /**
-     * aux function: read HEAD, and return the contents
-     * that HEAD refers, which is the SHA1 of current commit.
+     * aux function for diff --stat: print one line per file of NAMES with
+     * its count from COUNTS and a bar of '+' and '-' for the lines
+     * removed and added in LINES (null for a binary file), scaled to
+     * fit, then the totals.
      */
-    public static String readHEAD() {
-        String headRef = Utils.readContentsAsString(HEAD).trim();
-        File headFile = join(GITLET_DIR, headRef);
-        if (!headFile.exists()) {
-            return null;
+    private static void printDiffStat(List<String> names, List<String> counts,
+                                      List<int[]> lines) {
+        int nameWidth = 0;
+        int countWidth = 0;
+        int most = 0;
+        int removed = 0;
+        int added = 0;
+        for (int i = 0; i < names.size(); i += 1) {
+            nameWidth = Math.max(nameWidth, names.get(i).length());
+            if (lines.get(i) != null) {
+                countWidth = Math.max(countWidth, counts.get(i).length());
+                most = Math.max(most, lines.get(i)[0] + lines.get(i)[1]);
+                removed += lines.get(i)[0];
+                added += lines.get(i)[1];
+            }
         }
-        return Utils.readContentsAsString(headFile).trim();
+        int barWidth = 40;
+        for (int i = 0; i < names.size(); i += 1) {
+            int[] changed = lines.get(i);
+            String line = String.format(" %-" + nameWidth + "s | ", names.get(i));
+            if (changed == null) {
+                System.out.println(line + counts.get(i));
+                continue;
+            }
+            int plus = scaleBar(changed[1], most, barWidth);
+            int minus = scaleBar(changed[0], most, barWidth);
+            line += String.format("%" + countWidth + "s", counts.get(i));
+            if (plus + minus > 0) {
+                line += " " + "+".repeat(plus) + "-".repeat(minus);
+            }
+            System.out.println(line);
+        }
+
+        String summary = " " + names.size() + (names.size() == 1 ? " file" : " files") + " changed";
+        if (added > 0 || removed == 0) {
+            summary += ", " + added + (added == 1 ? " insertion(+)" : " insertions(+)");
+        }
+        if (removed > 0 || added == 0) {
+            summary += ", " + removed + (removed == 1 ? " deletion(-)" : " deletions(-)");
+        }
+        System.out.println(summary);
+    }
+
+    /** aux function for diff --stat: return how many characters of a bar
+     * at most WIDTH long stand for COUNT lines, when the largest count is
+     * MOST; at least one for any change. */
+    private static int scaleBar(int count, int most, int width) {
+        if (count == 0 || most <= width) {
+            return count;
+        }
+        return Math.max(1, (int) ((long) count * width / most));
     }
 
     /**
-     * aux function：update HEAD
-     * situation: checkout -> saveHead("master")
+     * gitlet repack [--delta]
+     * move all loose objects into a single pack file with a sorted index.
+     *
+     * @param useDeltas: store successive versions of a file as deltas.
      */
-    public static void updateHeadToBranch(String branchName) {
+    public static void repack(boolean useDeltas) {
+        /** check if the repository is initialized. */
+        checkInit();
+
+        int[] result = ObjectStore.repack(useDeltas ? planDeltas() : null);
+        if (useDeltas) {
+            System.out.println("Packed " + result[0] + " objects ("
+                    + result[1] + " deltas).");
+        } else {
+            System.out.println("Packed " + result[0] + " objects.");
+        }
+    }
+
+    /**
+     * gitlet stats
+     * show how many objects are stored, how much space they take,
+     * how well chunking deduplicates large files, and how many files
+     * the stat cache holds.
+     */
+    public static void stats() {
+        /** check if the repository is initialized. */
+        checkInit();
+
+        /** print the object counts. */
+        List<String> looseIds = ObjectStore.looseIds();
+        long looseBytes = 0;
+        for (String sha1 : looseIds) {
+            looseBytes += ObjectStore.looseFile(sha1).length();
+        }
+        List<String> packedIds = ObjectStore.packedIds();
+        List<File> packFiles = ObjectStore.packFiles();
+        long packBytes = 0;
+        for (File pack : packFiles) {
+            packBytes += pack.length();
+        }
+
+        System.out.println("=== Objects ===");
+        System.out.println("loose objects: " + looseIds.size());
+        System.out.println("loose size: " + looseBytes + " bytes");
+        System.out.println("packs: " + packFiles.size());
+        System.out.println("packed objects: " + packedIds.size());
+        System.out.println("pack size: " + packBytes + " bytes");
+        System.out.println();
+
+        /** print the dedup ratio of chunked files: the bytes their
+         * manifests refer to over the bytes of distinct chunks. */
+        Set<String> allIds = new TreeSet<>(looseIds);
+        allIds.addAll(packedIds);
+        int chunkedFiles = 0;
+        long chunkRefs = 0;
+        long logicalBytes = 0;
+        Map<String, Integer> uniqueChunks = new HashMap<>();
+        for (String sha1 : allIds) {
+            List<Chunker.Chunk> chunks = ObjectStore.chunksOf(sha1);
+            if (chunks == null) {
+                continue;
+            }
+            chunkedFiles += 1;
+            for (Chunker.Chunk chunk : chunks) {
+                chunkRefs += 1;
+                logicalBytes += chunk.length;
+                uniqueChunks.put(chunk.id, chunk.length);
+            }
+        }
+        long uniqueBytes = 0;
+        for (int length : uniqueChunks.values()) {
+            uniqueBytes += length;
+        }
+
+        System.out.println("=== Chunks ===");
+        System.out.println("chunked files: " + chunkedFiles);
+        System.out.println("chunk references: " + chunkRefs);
+        System.out.println("unique chunks: " + uniqueChunks.size());
+        System.out.println("logical size: " + logicalBytes + " bytes");
+        System.out.println("unique size: " + uniqueBytes + " bytes");
+        System.out.printf("dedup ratio: %.2f%n",
+                uniqueBytes == 0 ? 1.0 : (double) logicalBytes / uniqueBytes);
+        System.out.println();
+
+        /** walk the history of every branch in the commit graph, like
+         * global-log does, and report how much of the graph that is and
+         * how often this command was served by the commit cache. */
+        BitSet reachable = reachableCommits();
+        int maxGeneration = 0;
+        for (int pos = reachable.nextSetBit(0); pos >= 0; pos = reachable.nextSetBit(pos + 1)) {
+            maxGeneration = Math.max(maxGeneration, CommitGraph.generation(pos));
+        }
+
+        System.out.println("=== Commits ===");
+        System.out.println("commits in graph: " + CommitGraph.size());
+        System.out.println("reachable commits: " + reachable.cardinality());
+        System.out.println("max generation: " + maxGeneration);
+        System.out.println("reachability bitmaps: " + CommitBitmaps.size());
+        System.out.println("cache hits: " + CommitCache.hits());
+        System.out.println("cache misses: " + CommitCache.misses());
+        System.out.println();
+
+        /** print how many working files the stat cache can vouch for
+         * without hashing them. */
+        StatCache statCache = StatCache.read();
+        System.out.println("=== Stat cache ===");
+        System.out.println("cached files: " + statCache.size());
+        System.out.println("racy files: " + statCache.racyCount());
+        System.out.println();
+    }
+
+    /**
+     * gitlet bitmaps
+     * write the reachability bitmaps of the branch heads and of commits
+     * spaced through the history (see CommitBitmaps).
+     */
+    public static void bitmaps() {
+        /** check if the repository is initialized. */
+        checkInit();
+
+        int written = CommitBitmaps.write(branchHeadPositions());
+        System.out.println("Wrote " + written + " bitmaps.");
+    }
+
+    /**
+     * gitlet gc [--now]
+     * delete the loose objects that no branch and no staged file can
+     * reach, such as blobs that were added and then unstaged, or the
+     * commits left behind by reset and rm-branch, and report how much
+     * space that freed. packed objects are left alone.
+     *
+     * @param graceMillis: unreachable objects written less than this long
+     *                   ago are kept, since a command running alongside
+     *                   may be about to refer to them.
+     */
+    public static void gc(long graceMillis) {
+        /** check if the repository is initialized. */
+        checkInit();
+
+        /** mark everything reachable on all cores, then sweep the rest. */
+        int jobs = Runtime.getRuntime().availableProcessors();
+        long cutoff = System.currentTimeMillis() - graceMillis;
+        Set<String> reachable = markReachable(cutoff, jobs);
+        long[] result = ObjectStore.prune(reachable, cutoff, jobs);
+
+        /** forget the deleted commits. their removal moves the others in
+         * the commit graph, so any bitmaps are written again too. */
+        if (CommitIndex.prune() > 0) {
+            CommitGraph.rebuild();
+            if (CommitBitmaps.BITMAP_FILE.isFile()) {
+                CommitBitmaps.write(branchHeadPositions());
+            }
+        }
+        System.out.println("Removed " + result[0] + " objects, reclaimed "
+                + result[1] + " bytes.");
+    }
+
+    /**
+     * gitlet fsck
+     * check the object store using one thread per available processor.
+     */
+    public static void fsck() {
+        fsck(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * gitlet fsck --jobs [n]
+     * read back every object, loose and packed, and check that its
+     * contents still hash to its id and that everything it refers to is
+     * stored. print one line per problem, sorted by kind and id:
+     *     corrupt [type] [id]    the object cannot be read or hashes wrong
+     *     missing [type] [id]    an object, branch or staged file refers to it
+     *     dangling [type] [id]   nothing refers to it (gc may delete it)
+     * then a summary line of "key value" pairs.
+     *
+     * @param jobs: the number of threads that read and hash objects.
+     */
+    public static void fsck(int jobs) {
+        /** check if the repository is initialized. */
+        checkInit();
+
+        TreeSet<String> allIds = new TreeSet<>(ObjectStore.looseIds());
+        allIds.addAll(ObjectStore.packedIds());
+        List<String> ids = new ArrayList<>(allIds);
+
+        /** each task fills in its own slots, and adds what its object
+         * refers to, with the type it should have, to REFERENCED. */
+        String[] types = new String[ids.size()];
+        boolean[] corrupt = new boolean[ids.size()];
+        Map<String, String> referenced = new ConcurrentHashMap<>();
+        parallelFor(jobs, ids.size(), i -> {
+            types[i] = "unknown";
+            try {
+                ObjectStore.Type type = ObjectStore.typeOf(ids.get(i));
+                types[i] = type == ObjectStore.Type.UNKNOWN
+                        ? "commit" : type.name().toLowerCase();
+                corrupt[i] = !checkObject(ids.get(i), type, referenced);
+            } catch (RuntimeException excp) {
+                corrupt[i] = true;
+            }
+        });
+
+        /** the branches and the staging area refer to objects too. */
+        for (String head : getBranchHeads()) {
+            referenced.putIfAbsent(head, "commit");
+        }
+        Set<String> staged = new HashSet<>(readStage().getAddFiles().values());
+        for (String blob : staged) {
+            referenced.putIfAbsent(blob, "blob");
+        }
+
+        List<String> problems = new ArrayList<>();
+        int corruptCount = 0;
+        for (int i = 0; i < ids.size(); i += 1) {
+            if (corrupt[i]) {
+                problems.add("corrupt " + types[i] + " " + ids.get(i));
+                corruptCount += 1;
+            }
+        }
+        int missingCount = 0;
+        for (Map.Entry<String, String> ref : new TreeMap<>(referenced).entrySet()) {
+            if (!allIds.contains(ref.getKey())) {
+                problems.add("missing " + ref.getValue() + " " + ref.getKey());
+                missingCount += 1;
+            }
+        }
+        int danglingCount = 0;
+        for (int i = 0; i < ids.size(); i += 1) {
+            if (!referenced.containsKey(ids.get(i))) {
+                problems.add("dangling " + types[i] + " " + ids.get(i));
+                danglingCount += 1;
+            }
+        }
+        for (String problem : problems) {
+            System.out.println(problem);
+        }
+        System.out.println("objects " + ids.size() + " corrupt " + corruptCount
+                + " missing " + missingCount + " dangling " + danglingCount);
+    }
+
+    /**
+     * aux function for fsck: add every object that the object SHA1, of
+     * TYPE, refers to to REFERENCED, mapped to the type it should have.
+     * return false if the contents of SHA1 no longer hash to SHA1. safe to
+     * call from several threads at once.
+     */
+    private static boolean checkObject(String sha1, ObjectStore.Type type,
+                                       Map<String, String> referenced) {
+        if (type == ObjectStore.Type.TREE) {
+            List<String> trees = new ArrayList<>();
+            List<String> blobs = new ArrayList<>();
+            Tree.children(sha1, trees, blobs);
+            for (String tree : trees) {
+                referenced.putIfAbsent(tree, "tree");
+            }
+            for (String blob : blobs) {
+                referenced.putIfAbsent(blob, "blob");
+            }
+        } else if (type == ObjectStore.Type.COMMIT || type == ObjectStore.Type.UNKNOWN) {
+            /** decoded here rather than through the commit cache, which
+             * is not safe to share between threads. */
+            byte[] contents = ObjectStore.read(sha1);
+            Commit commit = Commit.fromBytes(contents);
+            for (String parent : new String[] {commit.getFirstParent(),
+                    commit.getSecondParent()}) {
+                if (parent != null) {
+                    referenced.putIfAbsent(parent, "commit");
+                }
+            }
+            if (commit.getTree() != null) {
+                referenced.putIfAbsent(commit.getTree(), "tree");
+            } else {
+                for (String blob : commit.getBlobs().values()) {
+                    referenced.putIfAbsent(blob, "blob");
+                }
+            }
+            return sha1.equals(sha1(contents));
+        } else {
+            List<Chunker.Chunk> chunks = ObjectStore.chunksOf(sha1);
+            if (chunks != null) {
+                boolean complete = true;
+                for (Chunker.Chunk chunk : chunks) {
+                    referenced.putIfAbsent(chunk.id, "chunk");
+                    complete = complete && ObjectStore.contains(chunk.id);
+                }
+                if (!complete) {
+                    /** the missing chunks are reported on their own. */
+                    return true;
+                }
+            }
+        }
+        return sha1.equals(ObjectStore.rehash(sha1));
+    }
+
+    /**
+     * aux function: return the ids of every object reachable from a branch
+     * head or from the staging area: the commits, their trees and blobs,
+     * and the chunks of chunked blobs. loose objects written at or after
+     * CUTOFF are roots as well, so that gc never keeps a recent object but
+     * deletes what it refers to. the trees are read one level at a time,
+     * each level on JOBS threads.
+     */
+    private static Set<String> markReachable(long cutoff, int jobs) {
+        Set<String> marked = ConcurrentHashMap.newKeySet();
+        List<Integer> tips = branchHeadPositions();
+        List<String> trees = new ArrayList<>();
+        List<String> blobs = new ArrayList<>(readStage().getAddFiles().values());
+        for (String sha1 : ObjectStore.looseIds()) {
+            if (ObjectStore.looseFile(sha1).lastModified() < cutoff) {
+                continue;
+            }
+            if (ObjectStore.typeOf(sha1) == ObjectStore.Type.TREE) {
+                trees.add(sha1);
+            } else if (CommitIndex.contains(sha1)) {
+                tips.add(CommitGraph.position(sha1));
+            } else {
+                blobs.add(sha1);
+            }
+        }
+
+        /** the commit graph gives the ancestors and their root trees
+         * without decoding any commit but those without a tree. */
+        BitSet commits = CommitBitmaps.reachable(tips);
+        for (int pos = commits.nextSetBit(0); pos >= 0; pos = commits.nextSetBit(pos + 1)) {
+            String commitSHA1 = CommitGraph.id(pos);
+            marked.add(commitSHA1);
+            String tree = CommitGraph.tree(pos);
+            if (tree != null) {
+                trees.add(tree);
+            } else {
+                blobs.addAll(getCommitBySHA1(commitSHA1).getBlobs().values());
+            }
+        }
+
+        /** trees already marked were reached through another commit,
+         * and so was everything below them. */
+        while (!trees.isEmpty()) {
+            List<String> level = new ArrayList<>();
+            for (String tree : trees) {
+                if (marked.add(tree)) {
+                    level.add(tree);
+                }
+            }
+            Queue<String> subtrees = new ConcurrentLinkedQueue<>();
+            Queue<String> files = new ConcurrentLinkedQueue<>();
+            parallelFor(jobs, level.size(), i -> Tree.children(level.get(i), subtrees, files));
+            trees = new ArrayList<>(subtrees);
+            blobs.addAll(files);
+        }
+
+        /** a chunked blob is only a manifest; its chunks are objects of
+         * their own. */
+        List<String> toCheck = new ArrayList<>();
+        for (String blob : blobs) {
+            if (marked.add(blob)) {
+                toCheck.add(blob);
+            }
+        }
+        parallelFor(jobs, toCheck.size(), i -> {
+            List<Chunker.Chunk> chunks = ObjectStore.chunksOf(toCheck.get(i));
+            if (chunks != null) {
+                for (Chunker.Chunk chunk : chunks) {
+                    marked.add(chunk.id);
+                }
+            }
+        });
+        return marked;
+    }
+
+    /**
+     * gitlet migrate
+     * rewrite the commits of every branch, and the staging area, from
+     * Java serialization into the binary format, and give commits that
+     * list their blobs directly a tree (see saveCommit). a commit's id is the
+     * hash of its encoding, so every commit is rewritten after its
+     * parents and the branches are moved to the new ids. the old
+     * commits are left in the object store.
+     */
+    public static void migrate() {
+        /** check if the repository is initialized. */
+        checkInit();
+
+        /** rewrite parents before children, with an explicit stack so
+         * long histories do not overflow the call stack. */
+        Map<String, String> newIds = new HashMap<>();
+        Deque<String> stack = new ArrayDeque<>(getBranchHeads());
+        int migrated = 0;
+        while (!stack.isEmpty()) {
+            String commitSHA1 = stack.peek();
+            if (newIds.containsKey(commitSHA1)) {
+                stack.pop();
+                continue;
+            }
+            Commit commit = getCommitBySHA1(commitSHA1);
+            List<String> parents = new ArrayList<>();
+            boolean ready = true;
+            for (String parent : Arrays.asList(commit.getFirstParent(),
+                    commit.getSecondParent())) {
+                if (parent == null) {
+                    continue;
+                }
+                if (!newIds.containsKey(parent)) {
+                    stack.push(parent);
+                    ready = false;
+                }
+                parents.add(newIds.get(parent));
+            }
+            if (!ready) {
+                continue;
+            }
+            stack.pop();
+            String newSHA1 = saveCommit(commit.withParents(parents));
+            newIds.put(commitSHA1, newSHA1);
+            if (!newSHA1.equals(commitSHA1)) {
+                migrated += 1;
+            }
+        }
+
+        /** move every branch to its rewritten head. */
+        for (String branchName : plainFilenamesIn(join(REFS_DIR, "heads"))) {
+            File headFile = join(REFS_DIR, "heads", branchName);
+            String oldSHA1 = readContentsAsString(headFile).trim();
+            writeContents(headFile, newIds.get(oldSHA1));
+        }
+
+        /** rewrite the staging area in the new format. */
+        writeStage(readStage());
+
+        System.out.println("Migrated " + migrated + " commits.");
+    }
+
+    /**
+     * aux function: choose a delta base for the blobs of every branch.
+     * walk the commits newest first; each version of a path is stored as
+     * a delta against the next newer version of that path, so recent
+     * versions stay whole and cheap to check out. A chain is cut once it
+     * is ObjectStore.MAX_DELTA_DEPTH deltas deep.
+     *
+     * @return a map from blob SHA1 to the SHA1 of its delta base.
+     */
+    private static Map<String, String> planDeltas() {
+        Map<String, String> bases = new HashMap<>();
+        Map<String, Integer> depth = new HashMap<>();
+        Map<String, String> newerAtPath = new HashMap<>();
+
+        Map<String, Commit> commits = new HashMap<>();
+        PriorityQueue<String> queue = new PriorityQueue<>(
+                (a, b) -> commits.get(b).getTimestamp().compareTo(commits.get(a).getTimestamp()));
+        for (String head : getBranchHeads()) {
+            if (!commits.containsKey(head)) {
+                commits.put(head, getCommitBySHA1(head));
+                queue.add(head);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            Commit commit = commits.get(queue.poll());
+
+            for (Map.Entry<String, String> entry : commit.getBlobs().entrySet()) {
+                String path = entry.getKey();
+                String blob = entry.getValue();
+                String newer = newerAtPath.put(path, blob);
+                if (depth.containsKey(blob)) {
+                    continue;
+                }
+                if (newer != null && depth.get(newer) < ObjectStore.MAX_DELTA_DEPTH) {
+                    bases.put(blob, newer);
+                    depth.put(blob, depth.get(newer) + 1);
+                } else {
+                    depth.put(blob, 0);
+                }
+            }
+
+            for (String parent : Arrays.asList(commit.getFirstParent(),
+                    commit.getSecondParent())) {
+                if (parent != null && !commits.containsKey(parent)) {
+                    commits.put(parent, getCommitBySHA1(parent));
+                    queue.add(parent);
+                }
+            }
+        }
+        return bases;
+    }
+
+    /**
+     * gitlet merge [branch name]
+     * merge the given branch into the current branch.
+     *
+     */
+    public static void merge(String branchName) {
+        merge(branchName, Renames.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * gitlet merge [branch name] [--find-renames=N]
+     * merge the given branch into the current branch, taking a file
+     * removed and one added on the same side as a rename when they are
+     * at least RENAMETHRESHOLD percent similar.
+     */
+    public static void merge(String branchName, int renameThreshold) {
+        /** check if the repository is initialized. */
+        checkInit();
+
+        /** --- Stage 1 ---
+         * check pre-conditions for merge operation.
+         */
+        File branchRefFile = join(REFS_DIR, "heads", branchName);
+        Stage stage = readStage();
+
+        /** check if the branch exists. */
+        if (!branchRefFile.exists()) {
+            throw error("A branch with that name does not exist.");
+        }
+        /** check if the branch is the current branch. */
+        if (isCurrentBranch(branchName)) {
+            throw error("Cannot merge a branch with itself.");
+        }
+        /** check if the staging area is not empty. */
+        if (!stage.getAddFiles().isEmpty() || !stage.getRemoveFiles().isEmpty()) {
+            throw error("You have uncommitted changes.");
+        }
+        /** check untracked files that would be overwritten. */
+        String branchCommitSHA1 = Utils.readContentsAsString(branchRefFile).trim();
+        Commit branchCommit = getCommitBySHA1(branchCommitSHA1);
+        Commit currentCommit = getCurrentCommit();
+        checkUntrackedConflict(branchCommit, currentCommit,
+                WorkingTree.scan(new GitletIgnore()).keySet());
+
+        /** --- Stage 2 ---
+         * find the split point commit.
+         */
+        String currentCommitSHA1 = readHEAD();
+        int currentPos = CommitGraph.position(currentCommitSHA1);
+        int branchPos = CommitGraph.position(branchCommitSHA1);
+
+        /** handle special cases, which are ancestry checks. */
+        if (CommitBitmaps.isAncestor(branchPos, currentPos)) {
+            System.out.println("Given branch is an ancestor of the current branch.");
+            return;
+        }
+
+        if (CommitBitmaps.isAncestor(currentPos, branchPos)) {
+            checkoutCommit(branchCommitSHA1);
+            saveHead(branchCommitSHA1);
+            System.out.println("Current branch fast-forwarded.");
+            return;
+        }
+
+        String splitPointSHA1 = findSplitPoint(currentCommitSHA1, branchCommitSHA1);
+        if (splitPointSHA1 == null) {
+            throw error("No splitPoint found.");
+        }
+        Commit splitPoint = getCommitBySHA1(splitPointSHA1);
+
+        /** --- Stage 3 ---
+         * perform the merge operation.
+         * this includes 8 cases.
+         */
+         StatCache statCache = StatCache.read();
+         boolean isConflict = handleMergeCases(splitPoint, currentCommit, branchCommit,
+                 branchName, stage, statCache, renameThreshold);
+         statCache.write();
+
+         /** --- Stage 4 ---
+          * create a new merge commit straight from the stage in memory.
+          */
+         String mergeMessage = "Merged " + branchName + " into "
+                 + getCurrentBranchName() + ".";
+         commitStage(stage, mergeMessage, branchCommitSHA1);
+
+         if (isConflict) {
+             System.out.println("Encountered a merge conflict.");
+         }
+    }
+
+    /**
+     * aux function: check if the repository is initialized.
+     */
+    private static void checkInit() {
+        if (!GITLET_DIR.exists()) {
+            throw error("Not in an initialized Gitlet directory.");
+        }
+    }
+
+    /**
+     * aux function: read the staging area.
+     */
+    public static Stage readStage() {
+        if (!STAGING.exists()) {
+            return new Stage();
+        }
+        return Stage.fromBytes(readContents(STAGING));
+    }
+
+    /**
+     * aux function: save the staging area.
+     */
+    public static void writeStage(Stage stage) {
+        writeContents(STAGING, (Object) stage.toBytes());
+    }
+
+    /**
+     * aux function: stage a single file.
+     */
+    private static void stageSingleFile(String fileName, Stage stage, Commit currentCommit,
+                                        StatCache statCache) {
+        File file = join(CWD, fileName);
+        if (!file.exists()) {
+            throw error("File does not exist.");
+        }
+
+        StatCache.Stat stat = StatCache.stat(file);
+        String fileSHA1 = storeWorkingFile(fileName, stat, statCache);
+        statCache.update(fileName, stat, fileSHA1);
+        stageBlob(fileName, fileSHA1, stage, currentCommit);
+    }
+
+    /**
+     * aux function: store the working file FILENAME, whose stat data is
+     * STAT, as a blob and return its SHA1.
+     * reuse the blob id cached for this file if its stat data has not
+     * changed. otherwise hash the file and store it as a blob in one
+     * streaming pass; the stat is taken first, so a change made while
+     * hashing shows up as a mismatch next time. safe to call from
+     * several threads at once.
+     */
+    private static String storeWorkingFile(String fileName, StatCache.Stat stat,
+                                           StatCache statCache) {
+        String fileSHA1 = statCache.lookup(fileName, stat);
+        if (fileSHA1 == null || !ObjectStore.contains(fileSHA1)) {
+            fileSHA1 = ObjectStore.writeFile(join(CWD, fileName));
+        }
+        return fileSHA1;
+    }
+
+    /**
+     * aux function: stage FILENAME, whose contents are the blob FILESHA1,
+     * or unstage it if it matches the current commit.
+     */
+    private static void stageBlob(String fileName, String fileSHA1, Stage stage,
+                                  Commit currentCommit) {
+
+        if (currentCommit != null && currentCommit.isTracked(fileName) &&
+                currentCommit.getBlobSHA1(fileName).equals(fileSHA1)) {
+
+            /** Situation A: Revoke Changes
+             * If the file is the same as the one in the current commit,
+             * do not stage it and remove it from the staging area.
+             * If it is staged for removal, unstage it.
+             */
+            if (stage.isAdded(fileName)) {
+                stage.unstageFile(fileName);
+            }
+
+            if (stage.isRemoved(fileName)) {
+                stage.unRemoveFile(fileName);
+            }
+        } else {
+
+            /** Situation B: New Changes
+             * If the file is different from the one in the current commit,
+             * or is a new file, stage it for addition.
+             * If it is staged for removal, unstage it.
+             */
+            stage.addFile(fileName, fileSHA1);
+
+            if (stage.isRemoved(fileName)) {
+                stage.unRemoveFile(fileName);
+            }
+        }
+    }
+
+    /**
+     * aux function: read HEAD, and return the contents
+     * that HEAD refers, which is the SHA1 of current commit.
+     */
+    public static String readHEAD() {
+        String headRef = Utils.readContentsAsString(HEAD).trim();
+        File headFile = join(GITLET_DIR, headRef);
+        if (!headFile.exists()) {
+            return null;
+        }
+        return Utils.readContentsAsString(headFile).trim();
+    }
+
+    /**
+     * aux function：update HEAD
+     * situation: checkout -> saveHead("master")
+     */
+    public static void updateHeadToBranch(String branchName) {
         String refPath = String.join("/", "refs", "heads", branchName);
         writeContents(HEAD, refPath);
     }
@@ -769,27 +1813,10 @@ public class Repository {
      */
     public static void saveBlob(byte[] content) {
         String SHA1 = Utils.sha1(content);
-        /** we divide the SHA1 to two parts
-         * to create a sub directory to store the commit file. */
-        String dirName = SHA1.substring(0, 2);
-        String fileName = SHA1.substring(2);
-
-        /** create the store directory. */
-        File dir = new File(OBJECTS_DIR, dirName);
-
-        if (!dir.exists()) {
-            dir.mkdir();
-        }
 
-        File file = join(dir, fileName);
-
-        /** if file already exists, do nothing. */
-        if (file.exists()) {
-            return;
-        }
-
-        /** write the commit object to the file. */
-        Utils.writeContents(file, content);
+        /** write the compressed blob to objects/xx/yyyy...,
+         * unless it is already stored loose or packed. */
+        ObjectStore.write(SHA1, ObjectStore.Type.BLOB, content);
     }
 
     /**
@@ -798,29 +1825,40 @@ public class Repository {
      * @return : the SHA1 of the commit object.
      */
     public static String saveCommit(Commit commit) {
-        /** serialize the commit object. */
-        String SHA1 = Utils.sha1(Utils.serialize(commit));
-
-        /** we divide the SHA1 to two parts
-         * to create a sub directory to store the commit file. */
-        String dirName = SHA1.substring(0, 2);
-        String fileName = SHA1.substring(2);
-
-        /** create the store directory. */
-        File dir = new File(OBJECTS_DIR, dirName);
-
-        if (!dir.exists()) {
-            dir.mkdir();
+        /** commits from before trees existed get one on their way in. */
+        if (commit.getTree() == null) {
+            commit = commit.withTree(treeOf(commit));
         }
 
-        File file = join(dir, fileName);
+        /** encode the commit object. */
+        byte[] content = commit.toBytes();
+        String SHA1 = Utils.sha1(content);
+
+        /** write the compressed commit to objects/xx/yyyy... */
+        ObjectStore.write(SHA1, ObjectStore.Type.COMMIT, content);
 
-        /** write an empty content to the file. */
-        Utils.writeObject(file, commit);
+        /** record it in the commit index for abbreviated ids, and
+         * in the commit graph for history walks. */
+        CommitIndex.add(SHA1);
+        CommitGraph.add(SHA1, commit);
 
         return SHA1;
     }
 
+    /**
+     * aux function: get the commit SHA1 that every branch points to,
+     * in order of branch name.
+     */
+    public static List<String> getBranchHeads() {
+        List<String> allBranchHeadName = plainFilenamesIn(join(REFS_DIR, "heads"));
+        List<String> branchHeadCommits = new ArrayList<>();
+        for (String branchName : allBranchHeadName) {
+            File headFile = join(REFS_DIR, "heads", branchName);
+            branchHeadCommits.add(readContentsAsString(headFile).trim());
+        }
+        return branchHeadCommits;
+    }
+
     /**
      * aux function: get the current commit.
      */
@@ -838,66 +1876,41 @@ public class Repository {
      * aux function: get a commit by its SHA1.
      */
     public static Commit getCommitBySHA1(String commitSHA1) {
-        String dirName = commitSHA1.substring(0, 2);
-        String fileName = commitSHA1.substring(2);
-        File commitFile = join(OBJECTS_DIR, dirName, fileName);
-        if (!commitFile.exists()) {
+        /** commits never change, so a cached one is always current. */
+        Commit commit = CommitCache.get(commitSHA1);
+        if (commit != null) {
+            return commit;
+        }
+
+        byte[] content = ObjectStore.read(commitSHA1);
+        if (content == null) {
             throw error("No commit with that id exists.");
         }
-        return readObject(commitFile, Commit.class);
+        commit = Commit.fromBytes(content);
+        CommitCache.put(commitSHA1, commit);
+        return commit;
     }
 
     /**
      * aux function: get a commit by 6 digits prefix of SHA1.
      */
     public static Commit getCommitByPrefixSHA1(String commitSHA1) {
-        if (commitSHA1.length() < 2) {
-            throw error("Commit id must be at least 2 characters.");
-        }
-
-        String dirName = commitSHA1.substring(0, 2);
-        String restPrefix = commitSHA1.substring(2);
-        File commitDir = join(OBJECTS_DIR, dirName);
-
-        if (!commitDir.exists() || !commitDir.isDirectory()) {
-            throw error("No commit with that id exists.");
-        }
-
-        /** search for the commit file with the given prefix. */
-        List<String> allFiles = plainFilenamesIn(commitDir);
-        List<String> candidates = new ArrayList<>();
-
-        for (String fileName : allFiles) {
-            if (fileName.startsWith(restPrefix)) {
-                String fullSHA1 = dirName + fileName;
-
-                /** check if it's Commit instead of blobs */
-                if (isCommit(fullSHA1)) {
-                    candidates.add(fullSHA1);
-                }
-            }
-        }
-
-        /** check if there are 2 or more candidates. */
-        if (candidates.isEmpty()) {
-            throw error("No commit with that id exists.");
-        } else if (candidates.size() > 1) {
-            throw error("Ambiguous ID prefix: more than one commit matches.");
-        }
-
-        return getCommitBySHA1(candidates.get(0));
+        return getCommitBySHA1(findFullSHA1(commitSHA1));
     }
 
     /**
      * aux function: check if a SHA1 refers to a commit object.
      */
-    private static boolean isCommit(String sha1) {
-        String dirName = sha1.substring(0, 2);
-        String fileName = sha1.substring(2);
-
-        File file = join(OBJECTS_DIR, dirName, fileName); // 之前写的路径拼接函数
+    public static boolean isCommit(String sha1) {
+        /** the type is in the object header, so blobs are rejected
+         * without reading them. only objects from before typed headers
+         * that look serialized need to be deserialized. */
+        ObjectStore.Type type = ObjectStore.typeOf(sha1);
+        if (type != ObjectStore.Type.UNKNOWN) {
+            return type == ObjectStore.Type.COMMIT;
+        }
         try {
-            readObject(file, Commit.class);
+            readObject(ObjectStore.open(sha1), Commit.class);
             return true;
         } catch (Exception e) {
             return false;
@@ -909,7 +1922,7 @@ public class Repository {
      */
     public static void clearStage() {
         Stage emptyStage = new Stage();
-        Utils.writeObject(Repository.STAGING, emptyStage);
+        writeStage(emptyStage);
     }
 
     /**
@@ -946,29 +1959,92 @@ public class Repository {
      * aux function: write blob content to CWD.
      */
     private static void writeBlobsToCWD(String fileName, String blobSHA1) {
-        String dirName = blobSHA1.substring(0, 2);
-        String filePart = blobSHA1.substring(2);
-        File blobFile = join(OBJECTS_DIR, dirName, filePart);
+        moveToCWD(prepareBlob(blobSHA1), fileName);
+    }
+
+    /**
+     * aux function: write the blob BLOBSHA1 to a new temporary file in
+     * .gitlet and return it, to be moved into the working directory by
+     * moveToCWD. the blob is streamed, without buffering it whole.
+     */
+    private static File prepareBlob(String blobSHA1) {
+        File tmp = createTempFile();
+        try {
+            ObjectStore.copyTo(blobSHA1, tmp);
+        } catch (RuntimeException excp) {
+            tmp.delete();
+            throw excp;
+        }
+        return tmp;
+    }
+
+    /**
+     * aux function: prepare the blobs BLOBS as by prepareBlob, on JOBS
+     * threads. if any fails, the files already written are deleted.
+     */
+    private static File[] prepareBlobs(List<String> blobs, int jobs) {
+        File[] tmps = new File[blobs.size()];
+        try {
+            parallelFor(jobs, tmps.length, i -> tmps[i] = prepareBlob(blobs.get(i)));
+        } catch (RuntimeException excp) {
+            deleteTempFiles(tmps);
+            throw excp;
+        }
+        return tmps;
+    }
 
-        byte[] content = Utils.readContents(blobFile);
+    /**
+     * aux function: create an empty temporary file in .gitlet, on the
+     * same file system as the working directory, so that it can be
+     * renamed into it.
+     */
+    private static File createTempFile() {
+        try {
+            return File.createTempFile("tmp_file_", null, GITLET_DIR);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
 
+    /**
+     * aux function: move TMP, a file from prepareBlob, over the working
+     * file FILENAME, creating the directories it needs. the file is
+     * replaced in one rename, so it is never seen half-written.
+     */
+    private static void moveToCWD(File tmp, String fileName) {
         File fileInCWD = join(CWD, fileName);
+        fileInCWD.getParentFile().mkdirs();
+        try {
+            Files.move(tmp.toPath(), fileInCWD.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
 
-        Utils.writeContents(fileInCWD, content);
+    /**
+     * aux function: delete the temporary files TMPS that are still there.
+     */
+    private static void deleteTempFiles(File[] tmps) {
+        for (File tmp : tmps) {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
     }
 
-    /** aux function: read file content from SHA1
-     * and turn to string.
+    /** aux function: read file content from SHA1,
+     * or no bytes if it is null.
      */
-    private static String getBlobContentAsString(String blobSHA1) {
+    private static byte[] getBlobContent(String blobSHA1) {
         if (blobSHA1 == null) {
-            return "";
+            return new byte[0];
         }
-        String dirName = blobSHA1.substring(0, 2);
-        String filePart = blobSHA1.substring(2);
-        File blobFile = join(OBJECTS_DIR, dirName, filePart);
-
-        return Utils.readContentsAsString(blobFile);
+        byte[] content = ObjectStore.read(blobSHA1);
+        if (content == null) {
+            throw error("Missing blob %s.", blobSHA1);
+        }
+        return content;
     }
 
     /**
@@ -983,9 +2059,12 @@ public class Repository {
 
     /**
      * aux function: check for untracked files that would be overwritten.
+     *
+     * @param cwdFiles: the files in the working directory, as scanned.
      */
-    private static void checkUntrackedConflict(Commit targetCommit, Commit currentCommit) {
-        List<String> untrackedFiles = findUntrackedFiles(currentCommit);
+    private static void checkUntrackedConflict(Commit targetCommit, Commit currentCommit,
+                                               Collection<String> cwdFiles) {
+        List<String> untrackedFiles = findUntrackedFiles(currentCommit, cwdFiles);
         Map<String, String> targetBlobs = targetCommit.getBlobs();
         Map<String, String> currentBlobs = currentCommit.getBlobs();
 
@@ -996,20 +2075,64 @@ public class Repository {
                         + "delete it, or add it first.");
             }
         }
+
+        /** a file and a directory cannot share a path either: no file
+         * left in the working directory, ignored or not, may be where
+         * the target needs a directory, or inside a directory where the
+         * target needs a file. the files the current commit tracks are
+         * deleted first, so they are not in the way. */
+        Set<String> targetDirs = null;
+        for (String fileName : cwdFiles) {
+            if (currentBlobs.containsKey(fileName)) {
+                continue;
+            }
+            if (targetDirs == null) {
+                targetDirs = parentDirs(targetBlobs.keySet());
+            }
+            if (targetDirs.contains(fileName) || hasParentIn(fileName, targetBlobs.keySet())) {
+                throw error("There is an untracked file in the way; "
+                        + "delete it, or add it first.");
+            }
+        }
     }
 
     /**
-     * aux function: find all untracked files.
+     * aux function: return every directory that holds one of FILENAMES,
+     * at any depth, as a path relative to CWD.
+     */
+    private static Set<String> parentDirs(Collection<String> fileNames) {
+        Set<String> dirs = new HashSet<>();
+        for (String fileName : fileNames) {
+            for (int i = fileName.lastIndexOf('/'); i > 0; i = fileName.lastIndexOf('/', i - 1)) {
+                if (!dirs.add(fileName.substring(0, i))) {
+                    break;
+                }
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * aux function: check if one of the directories that hold FILENAME
+     * is in PATHS.
+     */
+    private static boolean hasParentIn(String fileName, Collection<String> paths) {
+        for (int i = fileName.indexOf('/'); i >= 0; i = fileName.indexOf('/', i + 1)) {
+            if (paths.contains(fileName.substring(0, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * aux function: find all untracked files among CWDFILES.
      *
      * @return: a list of all untracked files.
      */
-    private static List<String> findUntrackedFiles(Commit commit) {
+    private static List<String> findUntrackedFiles(Commit commit, Collection<String> cwdFiles) {
         List<String> untrackedFiles = new ArrayList<>();
-        List<String> cwdFiles = plainFilenamesIn(CWD);
         GitletIgnore ignore = new GitletIgnore();
-        if (cwdFiles == null) {
-            throw error("No cwd files found.");
-        }
 
         Map<String, String> trackedBlobs = commit.getBlobs();
 
@@ -1023,169 +2146,333 @@ public class Repository {
 
 
     /**
-     * aux function: delete files tracked in current commit
-     * but not in target commit.
+     * aux function: return the last name of the path FILENAME.
      */
-    private static void clearOldTrackedFiles(Commit targetCommit, Commit currentCommit) {
-        Map<String, String> currentBlobs = currentCommit.getBlobs();
-        Map<String, String> targetBlobs = targetCommit.getBlobs();
+    private static String baseName(String fileName) {
+        return fileName.substring(fileName.lastIndexOf('/') + 1);
+    }
 
-        for (String fileName : currentBlobs.keySet()) {
-            if (!targetBlobs.containsKey(fileName)) {
-                Utils.restrictedDelete(join(CWD, fileName));
-            }
+    /**
+     * aux function: delete the working file FILENAME, a path relative to
+     * CWD, along with the directories it leaves empty.
+     */
+    private static void deleteWorkingFile(String fileName) {
+        File file = join(CWD, fileName);
+        if (!file.isFile() || !file.delete()) {
+            return;
+        }
+        File dir = file.getParentFile();
+        while (!dir.equals(CWD) && dir.delete()) {
+            dir = dir.getParentFile();
         }
     }
 
     /**
-     * aux function: find the split point commit between two commits.
-     * use BFS to find the split point.
+     * aux function: find the split point commit between two commits,
+     * the best of their merge bases (see CommitGraph.mergeBases).
+     * in a criss-cross history, where two commits have several merge
+     * bases none of which is above another, the one with the highest
+     * generation, then the latest, is used.
      *
      * @param currentCommitSHA1: the SHA1 of current commit
      * @param branchCommitSHA1: the SHA1 of branch commit
-     * @return commit: the commit of split point.
+     * @return the SHA1 of the split point, or null if there is none.
      */
-    private static Commit findSplitPoint(String currentCommitSHA1, String branchCommitSHA1) {
-        /** use a map to store all ancestors of current commit.
-         * key: commit SHA1, value: distance from current commit.
-         * use BFS to traverse all ancestors of current commit.
-         * */
-        Map<String, Integer> currentAncestors = new HashMap<>();
-        Queue<String> queue = new LinkedList<>();
-        queue.add(currentCommitSHA1);
-
-        while (!queue.isEmpty()) {
-            String commitSHA1 = queue.poll();
-
-            if (currentAncestors.containsKey(commitSHA1)) {
-                continue;
-            }
-
-            Commit commit = getCommitBySHA1(commitSHA1);
-            int distance = currentAncestors.getOrDefault(commitSHA1, 0);
-            currentAncestors.put(commitSHA1, distance);
-
-            String parent1SHA1 = commit.getFirstParent();
-            String parent2SHA1 = commit.getSecondParent();
-
-            if (parent1SHA1 != null) {
-                queue.add(parent1SHA1);
-            }
-            if (parent2SHA1 != null) {
-                queue.add(parent2SHA1);
-            }
-        }
-
-        /** use BFS to traverse all ancestors of branch commit.
-         * the first ancestor found in currentAncestors is the split point.
-         * */
-        queue.add(branchCommitSHA1);
-
-        while (!queue.isEmpty()) {
-            String commitSHA1 = queue.poll();
-
-            if (currentAncestors.containsKey(commitSHA1)) {
-                return getCommitBySHA1(commitSHA1);
-            }
-
-            Commit commit = getCommitBySHA1(commitSHA1);
-            String parent1SHA1 = commit.getFirstParent();
-            String parent2SHA1 = commit.getSecondParent();
-
-            if (parent1SHA1 != null) {
-                queue.add(parent1SHA1);
-            }
-            if (parent2SHA1 != null) {
-                queue.add(parent2SHA1);
-            }
-        }
-
-        return null;
+    private static String findSplitPoint(String currentCommitSHA1, String branchCommitSHA1) {
+        List<Integer> bases = CommitGraph.mergeBases(CommitGraph.position(currentCommitSHA1),
+                CommitGraph.position(branchCommitSHA1));
+        return bases.isEmpty() ? null : CommitGraph.id(bases.get(0));
     }
 
     /**
      * aux function: handle the 8 merge cases.
+     * the result is staged in STAGE, in memory; files are prepared under
+     * .gitlet, then deleted from and renamed into the working directory,
+     * and their stat data recorded in STATCACHE. blobs of the given
+     * branch are checked out as they are stored, so only conflict files
+     * are hashed.
      *
      * @param splitPoint:    the split point commit.
      * @param currentCommit: the current branch commit.
      * @param branchCommit:  the given branch commit.
-     * @param branchName:    the given branch name.
+     * @param branchName:    the name of the given branch.
+     * @param stage:         the staging area to fill in.
+     * @param statCache:     the stat cache of the working directory.
+     * @param renameThreshold: the similarity, in percent, for a file
+     *                       removed and one added on the same side to be
+     *                       taken as a rename.
      * @return : true if there is a conflict, false otherwise.
      */
     private static boolean handleMergeCases(Commit splitPoint, Commit currentCommit,
-                                            Commit branchCommit, String branchName) {
-        boolean conflict = false;
-
-        /** put all files of their names into a set*/
-        Set<String> allFiles = new HashSet<>();
-        allFiles.addAll(splitPoint.getBlobs().keySet());
-        allFiles.addAll(currentCommit.getBlobs().keySet());
-        allFiles.addAll(branchCommit.getBlobs().keySet());
-
-        for (String fileName : allFiles) {
-            String s = splitPoint.getBlobSHA1(fileName);
-            String c = currentCommit.getBlobSHA1(fileName);
-            String b = branchCommit.getBlobSHA1(fileName);
-
-            if (Objects.equals(s, c)) {
-                /** case 1: s = A, c = A, b = B
-                 *  case 4: s= null, c = null, b = B
-                 *  checkout b, stage b */
-                if (b != null && !Objects.equals(s, b)) {
-                    writeBlobsToCWD(fileName, b);
-                    add(fileName);
-                } else if (b == null) {
+                                            Commit branchCommit, String branchName,
+                                            Stage stage, StatCache statCache,
+                                            int renameThreshold) {
+        /** walk the three trees together in one sorted merge-join (see
+         * Tree.merge), which only reports files that differ between the
+         * current and given commits: a file the same on both sides
+         * needs nothing, whatever the split point has (case 3, and files
+         * removed on both sides). */
+        List<String[]> differing = new ArrayList<>();
+        Tree.merge(treeOf(splitPoint), treeOf(currentCommit), treeOf(branchCommit),
+                (fileName, s, c, b) -> differing.add(new String[] {fileName, s, c, b}));
+
+        /** a file renamed on one side and edited on the other looks like
+         * a removal against an edit, plus an add. pair these up (see
+         * findMergeRenames): the edit is merged into the renamed file,
+         * and the old name goes. */
+        Map<String, String[]> renameMerges = new HashMap<>();
+        Set<String> renamedFrom = new HashSet<>();
+        findMergeRenames(differing, renameThreshold, renameMerges, renamedFrom);
+
+        /** sort them into those to take from the given branch, those to
+         * remove and those to merge line by line, keeping the blob ids
+         * the tasks below need: the split point, current and given
+         * blobs, then the current blob at that name. */
+        List<String> toWrite = new ArrayList<>();
+        List<String> writeBlobs = new ArrayList<>();
+        List<String> toDelete = new ArrayList<>();
+        List<String> conflicts = new ArrayList<>();
+        List<String[]> conflictBlobs = new ArrayList<>();
+        for (String[] file : differing) {
+            String fileName = file[0];
+            String s = file[1];
+            String c = file[2];
+            String b = file[3];
+            if (renamedFrom.contains(fileName)) {
+                /** renamed on the given side: remove the old name here. */
+                if (c != null) {
+                    toDelete.add(fileName);
+                }
+            } else if (renameMerges.containsKey(fileName)) {
+                conflicts.add(fileName);
+                conflictBlobs.add(renameMerges.get(fileName));
+            } else if (Objects.equals(s, c)) {
+                if (b != null) {
+                    /** case 1: s = A, c = A, b = B
+                     *  case 4: s= null, c = null, b = B
+                     *  checkout b, stage b */
+                    toWrite.add(fileName);
+                    writeBlobs.add(b);
+                } else {
                     /** case 6: s = A, c = A, b = null
                      * remove and unstage file */
-                    restrictedDelete(fileName);
-                    rm(fileName);
-                }
-            }
-            else if (Objects.equals(s, b)) {
-                /** case 2: s = A, c = B, b = A
-                 *  case 5: s = null, c = B, b = null
-                 *  keep head version, do nothing
-                 */
-                if (c != null && !Objects.equals(s, c)) {
-                    continue;
-                } else if (c == null) {
-                    /** case 7: s = A, c = null, b = A
-                     *  remain removed, do nothing */
-                    continue;
+                    toDelete.add(fileName);
                 }
+            } else if (!Objects.equals(s, b)) {
+                /** case 8: changed on both sides, merged line
+                 * by line below, or removed on one side and
+                 * changed on the other, a conflict as a whole. */
+                conflicts.add(fileName);
+                conflictBlobs.add(new String[] {s, c, b, c});
             }
-            else if (Objects.equals(c, b) && c != null) {
-                /** case 3: s = A, c = B, b = B
-                 * keep head version, do nothing
-                 */
-                continue;
-            }
-            else {
-                /** case 8: conflict */
-                conflict = true;
-                handleMergeConflict(fileName, currentCommit, branchCommit);
+            /** case 2: s = A, c = B, b = A
+             *  case 5: s = null, c = B, b = null
+             *  case 7: s = A, c = null, b = A
+             *  keep head version, do nothing */
+        }
+
+        /** a file on one side may now be where the other side has a
+         * directory. the file is kept under another name (see
+         * moveClashingFiles), and the merge reports a conflict. */
+        boolean conflict = moveClashingFiles(currentCommit.getBlobs(), branchName,
+                toWrite, writeBlobs, toDelete, conflicts, conflictBlobs);
+
+        /** the working directory is updated on a pool twice as large as
+         * the number of processors, as in checkout. each task fills in
+         * its own slots. as in checkout, every file to write is first
+         * prepared in full under .gitlet: the blobs of the given branch,
+         * and the merged files, which are stored as blobs from there.
+         * a missing blob or a full disk stops the merge here, before the
+         * working directory is touched. */
+        int jobs = 2 * Runtime.getRuntime().availableProcessors();
+        File[] writeTmps = prepareBlobs(writeBlobs, jobs);
+        File[] mergedTmps = new File[conflicts.size()];
+        String[] mergedBlobs = new String[conflicts.size()];
+        boolean[] unresolved = new boolean[conflicts.size()];
+        try {
+            parallelFor(jobs, conflicts.size(), i -> {
+                String[] blobs = conflictBlobs.get(i);
+                /** a file changed on one side and removed on the other
+                 * is one conflict as a whole: merged by line, a removal
+                 * from an empty file would take the change without a
+                 * conflict. */
+                LineMerge.Result result = blobs[1] == null || blobs[2] == null
+                        ? LineMerge.conflict(getBlobContent(blobs[1]), getBlobContent(blobs[2]))
+                        : LineMerge.merge(getBlobContent(blobs[0]),
+                                getBlobContent(blobs[1]), getBlobContent(blobs[2]));
+                mergedTmps[i] = prepareContents(result.contents);
+                mergedBlobs[i] = ObjectStore.writeFile(mergedTmps[i]);
+                unresolved[i] = result.conflicts > 0;
+            });
+        } catch (RuntimeException excp) {
+            deleteTempFiles(writeTmps);
+            deleteTempFiles(mergedTmps);
+            throw excp;
+        }
+
+        /** then delete, and rename the prepared files into place. */
+        StatCache.Stat[] written = new StatCache.Stat[toWrite.size()];
+        StatCache.Stat[] merged = new StatCache.Stat[conflicts.size()];
+        try {
+            parallelFor(jobs, toDelete.size(), i -> deleteWorkingFile(toDelete.get(i)));
+            parallelFor(jobs, toWrite.size(), i -> {
+                moveToCWD(writeTmps[i], toWrite.get(i));
+                written[i] = StatCache.stat(join(CWD, toWrite.get(i)));
+            });
+            parallelFor(jobs, conflicts.size(), i -> {
+                moveToCWD(mergedTmps[i], conflicts.get(i));
+                merged[i] = StatCache.stat(join(CWD, conflicts.get(i)));
+            });
+        } finally {
+            deleteTempFiles(writeTmps);
+            deleteTempFiles(mergedTmps);
+        }
+
+        /** stage the results on this thread, in name order. every file
+         * here differs from the current commit, except a merged file
+         * that happens to come out the same. */
+        for (String fileName : toDelete) {
+            stage.removeFile(fileName);
+        }
+        for (int i = 0; i < toWrite.size(); i += 1) {
+            statCache.update(toWrite.get(i), written[i], writeBlobs.get(i));
+            stage.addFile(toWrite.get(i), writeBlobs.get(i));
+        }
+        for (int i = 0; i < conflicts.size(); i += 1) {
+            statCache.update(conflicts.get(i), merged[i], mergedBlobs[i]);
+            if (!mergedBlobs[i].equals(conflictBlobs.get(i)[3])) {
+                stage.addFile(conflicts.get(i), mergedBlobs[i]);
             }
+            conflict |= unresolved[i];
         }
 
         return conflict;
     }
 
-    /** aux function: handle merge conflict. */
-    private static void handleMergeConflict(String fileName, Commit currentCommit, Commit branchCommit) {
-        String currentContent = getBlobContentAsString(currentCommit.getBlobSHA1(fileName));
-        String branchContent = getBlobContentAsString(branchCommit.getBlobSHA1(fileName));
+    /**
+     * aux function for merge: find the files that the merge, as sorted
+     * into TOWRITE (with blobs WRITEBLOBS), TODELETE and CONFLICTS (with
+     * blobs CONFLICTBLOBS), would leave where it also leaves a directory,
+     * such as a file d on the current side and d/x.txt from the given
+     * one. as git does, each such file is kept as FILE~HEAD if the
+     * current commit, with blobs CURRENTBLOBS, tracks it, or as
+     * FILE~BRANCHNAME otherwise, with a number added if that name is
+     * taken too. the lists are changed in place.
+     *
+     * @return true if any file was moved.
+     */
+    private static boolean moveClashingFiles(Map<String, String> currentBlobs, String branchName,
+                                             List<String> toWrite, List<String> writeBlobs,
+                                             List<String> toDelete, List<String> conflicts,
+                                             List<String[]> conflictBlobs) {
+        /** the files the merge leaves tracked. */
+        Set<String> result = new HashSet<>(currentBlobs.keySet());
+        result.removeAll(toDelete);
+        result.addAll(toWrite);
+        result.addAll(conflicts);
+
+        Set<String> clashing = new TreeSet<>();
+        for (String fileName : result) {
+            for (int i = fileName.indexOf('/'); i >= 0; i = fileName.indexOf('/', i + 1)) {
+                if (result.contains(fileName.substring(0, i))) {
+                    clashing.add(fileName.substring(0, i));
+                }
+            }
+        }
+
+        for (String fileName : clashing) {
+            String side = currentBlobs.containsKey(fileName) ? "HEAD" : branchName;
+            String newName = fileName + "~" + side;
+            for (int n = 0; result.contains(newName) || join(CWD, newName).exists(); n += 1) {
+                newName = fileName + "~" + side + "_" + n;
+            }
+            result.add(newName);
+
+            int write = toWrite.indexOf(fileName);
+            int merge = conflicts.indexOf(fileName);
+            if (write >= 0) {
+                toWrite.set(write, newName);
+            } else if (merge >= 0) {
+                /** nothing is tracked at the new name yet, so the merged
+                 * file is always staged. */
+                String[] blobs = conflictBlobs.get(merge).clone();
+                blobs[3] = null;
+                conflicts.set(merge, newName);
+                conflictBlobs.set(merge, blobs);
+            } else {
+                toWrite.add(newName);
+                writeBlobs.add(currentBlobs.get(fileName));
+            }
+            if (currentBlobs.containsKey(fileName)) {
+                toDelete.add(fileName);
+            }
+        }
+        return !clashing.isEmpty();
+    }
 
-        String conflictContent = "<<<<<<< HEAD\n"
-                + currentContent
-                + "=======\n"
-                + branchContent
-                + ">>>>>>>\n";
+    /**
+     * aux function for merge: find the files renamed on one side whose
+     * old name was edited on the other, among DIFFERING, the files that
+     * differ between the current and given commits as {name, split
+     * blob, current blob, given blob}.
+     * for each, the new name is mapped in MERGES to the blobs to merge,
+     * {split blob of the old name, current version, given version,
+     * current blob at the new name}, and the old name is added to
+     * RENAMEDFROM. only files with nothing at the new name on the
+     * editing side are paired, so no third file is involved.
+     */
+    private static void findMergeRenames(List<String[]> differing, int threshold,
+                                         Map<String, String[]> merges,
+                                         Set<String> renamedFrom) {
+        Map<String, String[]> byName = new HashMap<>();
+        Map<String, String> removedInCurrent = new HashMap<>();
+        Map<String, String> addedInCurrent = new HashMap<>();
+        Map<String, String> removedInBranch = new HashMap<>();
+        Map<String, String> addedInBranch = new HashMap<>();
+        for (String[] file : differing) {
+            String s = file[1];
+            String c = file[2];
+            String b = file[3];
+            byName.put(file[0], file);
+            if (s != null && c == null && b != null && !b.equals(s)) {
+                removedInCurrent.put(file[0], s);
+            } else if (s == null && c != null && b == null) {
+                addedInCurrent.put(file[0], c);
+            } else if (s != null && b == null && c != null && !c.equals(s)) {
+                removedInBranch.put(file[0], s);
+            } else if (s == null && b != null && c == null) {
+                addedInBranch.put(file[0], b);
+            }
+        }
 
-        /** write the conflict content to the file in CWD. */
-        File fileInCWD = join(CWD, fileName);
-        Utils.writeContents(fileInCWD, conflictContent);
+        for (Renames.Rename rename
+                : Renames.detect(removedInCurrent, addedInCurrent, threshold).values()) {
+            String[] from = byName.get(rename.from);
+            String[] to = byName.get(rename.to);
+            merges.put(rename.to, new String[] {from[1], to[2], from[3], to[2]});
+            renamedFrom.add(rename.from);
+        }
+        for (Renames.Rename rename
+                : Renames.detect(removedInBranch, addedInBranch, threshold).values()) {
+            String[] from = byName.get(rename.from);
+            String[] to = byName.get(rename.to);
+            merges.put(rename.to, new String[] {from[1], from[2], to[3], null});
+            renamedFrom.add(rename.from);
+        }
+    }
 
-        /** stage the file. */
-        add(fileName);
+    /**
+     * aux function: write CONTENTS to a new temporary file in .gitlet and
+     * return it, to be moved into the working directory by moveToCWD.
+     */
+    private static File prepareContents(byte[] contents) {
+        File tmp = createTempFile();
+        try {
+            Utils.writeContents(tmp, (Object) contents);
+        } catch (RuntimeException excp) {
+            tmp.delete();
+            throw excp;
+        }
+        return tmp;
     }
 }
@@ -4,8 +4,14 @@ package gitlet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Serializable;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
 
 /** Represents a gitlet stage object.
  *
@@ -22,6 +28,9 @@ public class Stage implements Serializable {
 
     private static final long serialVersionUID = 123456789L;
 
+    /** Format version of the binary encoding. */
+    private static final int CODEC_VERSION = 1;
+
     /** Crete a new stage. */
     public Stage() {
         addFiles = new HashMap<String,String>();
@@ -67,4 +76,46 @@ public class Stage implements Serializable {
     public Set<String> getRemoveFiles() {
         return removeFiles;
     }
+
+    /** Encode this stage in the binary format:
+     *  version | varint count | (file name | raw blob id) sorted by name
+     *  | varint count | file names sorted
+     * where a string is a varint length and UTF-8 bytes. */
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(CODEC_VERSION);
+        Delta.writeVarint(out, addFiles.size());
+        for (Map.Entry<String, String> entry : new TreeMap<>(addFiles).entrySet()) {
+            writeString(out, entry.getKey());
+            writeId(out, entry.getValue());
+        }
+        Delta.writeVarint(out, removeFiles.size());
+        for (String fileName : new TreeSet<>(removeFiles)) {
+            writeString(out, fileName);
+        }
+        return out.toByteArray();
+    }
+
+    /** Decode a stage from DATA, written either by toBytes or by Java
+     *  serialization. */
+    public static Stage fromBytes(byte[] data) {
+        if (isSerialized(data)) {
+            return readObject(new ByteArrayInputStream(data), Stage.class);
+        }
+        if (data.length == 0 || data[0] != CODEC_VERSION) {
+            throw error("Unknown staging area format.");
+        }
+        Stage stage = new Stage();
+        int[] pos = {1};
+        int addCount = (int) Delta.readVarint(data, pos);
+        for (int i = 0; i < addCount; i += 1) {
+            String fileName = readString(data, pos);
+            stage.addFiles.put(fileName, readId(data, pos));
+        }
+        int removeCount = (int) Delta.readVarint(data, pos);
+        for (int i = 0; i < removeCount; i += 1) {
+            stage.removeFiles.add(readString(data, pos));
+        }
+        return stage;
+    }
 }
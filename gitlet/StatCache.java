@@ -0,0 +1,215 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/** Remembers the blob id of each working file together with its stat data
+ *  (modification time, size and inode), so that a file whose stat data
+ *  has not changed is not read and hashed again.
+ *
+ *  Layout (".gitlet/stat-cache"):
+ *      version | varint count
+ *      | (file name | varint mtime (ns) | varint size | varint inode
+ *         | raw blob id) sorted by name
+ *  where a string is a varint length and UTF-8 bytes.
+ *
+ *  Like git's index, the cache guards against "racy" entries: a file
+ *  changed within the same clock tick as it was hashed keeps its mtime,
+ *  so an entry is only trusted if the file was last modified strictly
+ *  before the cache itself was written. Racy files are hashed again, and
+ *  if they are found unchanged the cache is written back, so that it is
+ *  newer than them and they are trusted from then on.
+ *  @author BillyDu
+ */
+class StatCache {
+    /** The cache file. */
+    static final File CACHE_FILE = join(Repository.GITLET_DIR, "stat-cache");
+
+    /** Format version of the cache. */
+    private static final int VERSION = 1;
+
+    /** The stat data of a file. */
+    static class Stat {
+        /** Modification time in nanoseconds. */
+        final long mtime;
+        /** Length in bytes. */
+        final long size;
+        /** Inode number, or 0 where the file system has none. */
+        final long inode;
+
+        Stat(long mtime, long size, long inode) {
+            this.mtime = mtime;
+            this.size = size;
+            this.inode = inode;
+        }
+
+        /** Check if THAT describes the same file version as this. */
+        boolean matches(Stat that) {
+            return mtime == that.mtime && size == that.size && inode == that.inode;
+        }
+    }
+
+    /** A cached file: its stat data when it was hashed, and its blob id. */
+    private static class Entry {
+        /** Stat data of the file when it was hashed. */
+        final Stat stat;
+        /** Blob id of the contents. */
+        final String blobSHA1;
+
+        Entry(Stat stat, String blobSHA1) {
+            this.stat = stat;
+            this.blobSHA1 = blobSHA1;
+        }
+    }
+
+    /** Entries by file name. */
+    private final Map<String, Entry> entries = new TreeMap<>();
+    /** Modification time of the cache file when it was read, in
+     *  nanoseconds; entries at or after it are racy. */
+    private final long writtenAt;
+    /** True if the cache changed since it was read. */
+    private boolean dirty;
+
+    /** Create an empty cache. */
+    private StatCache() {
+        writtenAt = Long.MIN_VALUE;
+    }
+
+    /** Create a cache read from DATA, a file written at WRITTENAT. */
+    private StatCache(byte[] data, long writtenAt) {
+        this.writtenAt = writtenAt;
+        if (data.length == 0 || data[0] != VERSION) {
+            dirty = true;
+            return;
+        }
+        int[] pos = {1};
+        int count = (int) Delta.readVarint(data, pos);
+        for (int i = 0; i < count; i += 1) {
+            String fileName = readString(data, pos);
+            long mtime = Delta.readVarint(data, pos);
+            long size = Delta.readVarint(data, pos);
+            long inode = Delta.readVarint(data, pos);
+            entries.put(fileName, new Entry(new Stat(mtime, size, inode), readId(data, pos)));
+        }
+    }
+
+    /** Return the cache of this repository, empty if there is none. */
+    static StatCache read() {
+        if (!CACHE_FILE.isFile()) {
+            return new StatCache();
+        }
+        return new StatCache(readContents(CACHE_FILE), stat(CACHE_FILE).mtime);
+    }
+
+    /** Write the cache back if it changed. */
+    void write() {
+        if (!dirty) {
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(entries.size() * 48 + 8);
+        out.write(VERSION);
+        Delta.writeVarint(out, entries.size());
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+            Entry entry = item.getValue();
+            writeString(out, item.getKey());
+            Delta.writeVarint(out, entry.stat.mtime);
+            Delta.writeVarint(out, entry.stat.size);
+            Delta.writeVarint(out, entry.stat.inode);
+            writeId(out, entry.blobSHA1);
+        }
+        writeContents(CACHE_FILE, (Object) out.toByteArray());
+        dirty = false;
+    }
+
+    /** Return the blob id cached for FILENAME if its stat data is still
+     *  STAT and the entry is not racy, or null if the file must be
+     *  hashed. */
+    String lookup(String fileName, Stat stat) {
+        Entry entry = entries.get(fileName);
+        if (entry == null || !entry.stat.matches(stat) || stat.mtime >= writtenAt) {
+            return null;
+        }
+        return entry.blobSHA1;
+    }
+
+    /** Record that FILENAME, with stat data STAT, hashes to BLOBSHA1. */
+    void update(String fileName, Stat stat, String blobSHA1) {
+        Entry old = entries.get(fileName);
+        if (old != null && old.stat.matches(stat) && old.blobSHA1.equals(blobSHA1)) {
+            /** a racy entry hashed again and found unchanged: write the
+             * cache back anyway, or it stays older than the file and the
+             * file is hashed on every run. */
+            if (stat.mtime >= writtenAt) {
+                dirty = true;
+            }
+            return;
+        }
+        entries.put(fileName, new Entry(stat, blobSHA1));
+        dirty = true;
+    }
+
+    /** Return the number of cached files. */
+    int size() {
+        return entries.size();
+    }
+
+    /** Return the number of cached files that are racy, that is modified
+     *  no earlier than the cache was written. */
+    int racyCount() {
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.stat.mtime >= writtenAt) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    /** Forget every file whose name is not in FILENAMES. */
+    void retain(Collection<String> fileNames) {
+        Set<String> keep = new HashSet<>(fileNames);
+        if (entries.keySet().retainAll(keep)) {
+            dirty = true;
+        }
+    }
+
+    /** Return the stat data of FILE. */
+    static Stat stat(File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(),
+                    BasicFileAttributes.class);
+            return new Stat(toNanos(attrs.lastModifiedTime()), attrs.size(), inode(file));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the inode number of FILE, or 0 if the file system does not
+     *  report one. */
+    private static long inode(File file) {
+        try {
+            Object ino = Files.getAttribute(file.toPath(), "unix:ino");
+            return ino instanceof Number ? ((Number) ino).longValue() : 0;
+        } catch (UnsupportedOperationException | IllegalArgumentException
+                 | IOException excp) {
+            return 0;
+        }
+    }
+
+    /** Return TIME in nanoseconds since the epoch. */
+    private static long toNanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,379 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** Represents one directory of a commit as a Merkle tree object.
+ *  A tree lists the files and subdirectories directly inside a directory;
+ *  a file points to its blob and a subdirectory to its own tree, both by
+ *  SHA-1, and a commit points to the tree of the root directory. Since
+ *  the id of a tree covers everything below it, commits share every
+ *  unchanged subtree, a commit only writes the trees along the paths it
+ *  changed, and two subtrees with the same id are equal without looking
+ *  inside them.
+ *
+ *  Layout (the contents of a TREE object):
+ *      version | varint count | (kind | name | raw id) sorted by name
+ *  where kind is FILE or DIRECTORY and a name is a varint length and
+ *  UTF-8 bytes. Paths join the names of nested directories with '/'.
+ *  @author BillyDu
+ */
+class Tree {
+    /** Format version of trees. */
+    private static final int VERSION = 1;
+    /** Kind of an entry that is a file. */
+    private static final int FILE = 0;
+    /** Kind of an entry that is a subdirectory. */
+    private static final int DIRECTORY = 1;
+    /** Number of flattened trees kept by flatten. */
+    private static final int FLAT_CACHE_SIZE = 8;
+
+    /** An entry of a tree. */
+    private static class Entry {
+        /** True if this is a subdirectory rather than a file. */
+        final boolean isDirectory;
+        /** The tree id of a subdirectory, or the blob id of a file. */
+        final String id;
+
+        Entry(boolean isDirectory, String id) {
+            this.isDirectory = isDirectory;
+            this.id = id;
+        }
+    }
+
+    /** Recently flattened trees, least recently used first. */
+    private static final LinkedHashMap<String, Map<String, String>> flatCache =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The entries of this tree by name, in sorted order. */
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    /** The entries of a stored tree as offsets into its bytes, in the
+     *  sorted order they are stored in, so that a walk over them creates
+     *  no objects for entries it does not report. */
+    private static class Listing {
+        /** The contents of the tree object. */
+        final byte[] data;
+        /** Number of entries. */
+        final int size;
+        /** Offset of the UTF-8 name of each entry. */
+        final int[] nameStart;
+        /** Length of the UTF-8 name of each entry. */
+        final int[] nameLength;
+        /** Offset of the raw id of each entry. */
+        final int[] idStart;
+        /** True for the entries that are subdirectories. */
+        final boolean[] isDirectory;
+
+        /** List the tree SHA1, or an empty tree if SHA1 is null. */
+        Listing(String sha1) {
+            data = contents(sha1);
+            int[] pos = {1};
+            size = data == null ? 0 : (int) Delta.readVarint(data, pos);
+            nameStart = new int[size];
+            nameLength = new int[size];
+            idStart = new int[size];
+            isDirectory = new boolean[size];
+            for (int i = 0; i < size; i += 1) {
+                isDirectory[i] = data[pos[0]] == DIRECTORY;
+                pos[0] += 1;
+                nameLength[i] = (int) Delta.readVarint(data, pos);
+                nameStart[i] = pos[0];
+                idStart[i] = pos[0] + nameLength[i];
+                pos[0] = idStart[i] + UID_LENGTH / 2;
+            }
+        }
+
+        /** Return the name of entry I. */
+        String name(int i) {
+            return new String(data, nameStart[i], nameLength[i], StandardCharsets.UTF_8);
+        }
+
+        /** Return the id of entry I. */
+        String id(int i) {
+            return bytesToSha1(data, idStart[i], UID_LENGTH / 2);
+        }
+
+        /** Compare the name of entry I with that of entry J of OTHER, in
+         *  the order of String.compareTo. Equal names are told apart from
+         *  their bytes alone. */
+        int compareName(int i, Listing other, int j) {
+            if (Arrays.equals(data, nameStart[i], nameStart[i] + nameLength[i],
+                    other.data, other.nameStart[j], other.nameStart[j] + other.nameLength[j])) {
+                return 0;
+            }
+            return name(i).compareTo(other.name(j));
+        }
+
+        /** Check if entry I has the same id as entry J of OTHER. */
+        boolean sameId(int i, Listing other, int j) {
+            return Arrays.equals(data, idStart[i], idStart[i] + UID_LENGTH / 2,
+                    other.data, other.idStart[j], other.idStart[j] + UID_LENGTH / 2);
+        }
+    }
+
+    /** Return the contents of the tree object SHA1, or null if SHA1 is
+     *  null. */
+    private static byte[] contents(String sha1) {
+        if (sha1 == null) {
+            return null;
+        }
+        byte[] data = ObjectStore.read(sha1);
+        if (data == null) {
+            throw error("Missing tree %s.", sha1);
+        }
+        if (data.length == 0 || data[0] != VERSION) {
+            throw error("Unknown tree format.");
+        }
+        return data;
+    }
+
+    /** Return the tree object SHA1. */
+    private static Tree read(String sha1) {
+        Tree tree = new Tree();
+        byte[] data = contents(sha1);
+        if (data == null) {
+            return tree;
+        }
+        int[] pos = {1};
+        int count = (int) Delta.readVarint(data, pos);
+        for (int i = 0; i < count; i += 1) {
+            boolean isDirectory = data[pos[0]] == DIRECTORY;
+            pos[0] += 1;
+            String name = readString(data, pos);
+            tree.entries.put(name, new Entry(isDirectory, readId(data, pos)));
+        }
+        return tree;
+    }
+
+    /** Store this tree and return its SHA1. */
+    private String write() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(entries.size() * 40 + 8);
+        out.write(VERSION);
+        Delta.writeVarint(out, entries.size());
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+            out.write(item.getValue().isDirectory ? DIRECTORY : FILE);
+            writeString(out, item.getKey());
+            writeId(out, item.getValue().id);
+        }
+        byte[] contents = out.toByteArray();
+        String sha1 = sha1(contents);
+        ObjectStore.write(sha1, ObjectStore.Type.TREE, contents);
+        return sha1;
+    }
+
+    /** Return the id of the tree ROOT (null for an empty tree) with the
+     *  files in CHANGES set. CHANGES maps a path to its new blob id, or to
+     *  null to remove the file. Only the trees of directories on a changed
+     *  path are read and written; directories left empty disappear. */
+    static String update(String root, Map<String, String> changes) {
+        String result = updateTree(root, changes);
+        return result != null ? result : new Tree().write();
+    }
+
+    /** Return the id of the tree ROOT with CHANGES applied as for update,
+     *  or null if it ends up empty. */
+    private static String updateTree(String root, Map<String, String> changes) {
+        Tree tree = read(root);
+
+        /** split the changes into those to files directly in this
+         * directory and those below each subdirectory. */
+        Map<String, String> files = new HashMap<>();
+        Map<String, Map<String, String>> below = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                files.put(path, change.getValue());
+            } else {
+                below.computeIfAbsent(path.substring(0, slash), k -> new HashMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+
+        /** removals go first and additions last, so that a file may
+         * replace a directory of the same name and the other way round. */
+        for (Map.Entry<String, String> change : files.entrySet()) {
+            Entry old = tree.entries.get(change.getKey());
+            if (change.getValue() == null && old != null && !old.isDirectory) {
+                tree.entries.remove(change.getKey());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> item : below.entrySet()) {
+            Entry old = tree.entries.get(item.getKey());
+            String subtree = updateTree(old != null && old.isDirectory ? old.id : null,
+                    item.getValue());
+            if (subtree == null) {
+                if (old != null && old.isDirectory) {
+                    tree.entries.remove(item.getKey());
+                }
+            } else {
+                tree.entries.put(item.getKey(), new Entry(true, subtree));
+            }
+        }
+        for (Map.Entry<String, String> change : files.entrySet()) {
+            if (change.getValue() != null) {
+                tree.entries.put(change.getKey(), new Entry(false, change.getValue()));
+            }
+        }
+        return tree.entries.isEmpty() ? null : tree.write();
+    }
+
+    /** Add the ids of the subdirectories directly inside the tree SHA1 to
+     *  TREES, and the blob ids of its files to BLOBS. */
+    static void children(String sha1, Collection<String> trees, Collection<String> blobs) {
+        for (Entry entry : read(sha1).entries.values()) {
+            (entry.isDirectory ? trees : blobs).add(entry.id);
+        }
+    }
+
+    /** Return a read-only map from the path of every file under the tree
+     *  ROOT to its blob id, in path order. */
+    static Map<String, String> flatten(String root) {
+        Map<String, String> result = flatCache.get(root);
+        if (result == null) {
+            TreeMap<String, String> files = new TreeMap<>();
+            flatten(root, "", files);
+            result = Collections.unmodifiableMap(files);
+            flatCache.put(root, result);
+            Iterator<String> eldest = flatCache.keySet().iterator();
+            while (flatCache.size() > FLAT_CACHE_SIZE) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return result;
+    }
+
+    /** Add every file under the tree ROOT to FILES, each path prefixed
+     *  with PREFIX. */
+    private static void flatten(String root, String prefix, Map<String, String> files) {
+        for (Map.Entry<String, Entry> item : read(root).entries.entrySet()) {
+            Entry entry = item.getValue();
+            if (entry.isDirectory) {
+                flatten(entry.id, prefix + item.getKey() + "/", files);
+            } else {
+                files.put(prefix + item.getKey(), entry.id);
+            }
+        }
+    }
+
+    /** Receives the files of a three-way walk (see merge). */
+    interface MergeVisitor {
+        /** Called for the file PATH, whose blob is S at the split point,
+         *  C on the current side and B on the other, each null if the
+         *  file is absent there. */
+        void visit(String path, String s, String c, String b);
+    }
+
+    /** Walk the trees SPLIT, CURRENT and BRANCH, any of which may be
+     *  null, together, and pass to VISITOR every file whose blob differs
+     *  between CURRENT and BRANCH, directory by directory in name order.
+     *  The entries of the three trees are already sorted by name, so each
+     *  directory is one linear merge-join over them. A subtree with the
+     *  same id in CURRENT and BRANCH needs nothing from a merge and is
+     *  skipped whole. */
+    static void merge(String split, String current, String branch, MergeVisitor visitor) {
+        merge(split, current, branch, "", visitor);
+    }
+
+    /** Walk the trees SPLIT, CURRENT and BRANCH as for merge, each path
+     *  prefixed with PREFIX. */
+    private static void merge(String split, String current, String branch,
+                              String prefix, MergeVisitor visitor) {
+        if (Objects.equals(current, branch)) {
+            return;
+        }
+        Listing s = new Listing(split);
+        Listing c = new Listing(current);
+        Listing b = new Listing(branch);
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (j < c.size || k < b.size) {
+            /** the next name is the least of the current and branch
+             * entries; split entries before it were deleted on both sides. */
+            int order = j == c.size ? 1 : k == b.size ? -1 : c.compareName(j, b, k);
+            boolean inC = order <= 0;
+            boolean inB = order >= 0;
+            Listing lead = inC ? c : b;
+            int at = inC ? j : k;
+            while (i < s.size && s.compareName(i, lead, at) < 0) {
+                i += 1;
+            }
+            boolean inS = i < s.size && s.compareName(i, lead, at) == 0;
+
+            boolean sDir = inS && s.isDirectory[i];
+            boolean cDir = inC && c.isDirectory[j];
+            boolean bDir = inB && b.isDirectory[k];
+            if ((cDir || bDir) && !(cDir && bDir && c.sameId(j, b, k))) {
+                merge(sDir ? s.id(i) : null, cDir ? c.id(j) : null,
+                        bDir ? b.id(k) : null, prefix + lead.name(at) + "/", visitor);
+            }
+            boolean cFile = inC && !c.isDirectory[j];
+            boolean bFile = inB && !b.isDirectory[k];
+            if ((cFile || bFile) && !(cFile && bFile && c.sameId(j, b, k))) {
+                visitor.visit(prefix + lead.name(at),
+                        inS && !sDir ? s.id(i) : null,
+                        cFile ? c.id(j) : null, bFile ? b.id(k) : null);
+            }
+            j += inC ? 1 : 0;
+            k += inB ? 1 : 0;
+        }
+    }
+
+    /** Return the files that differ between the trees FROM and TO, as a
+     *  map from path to blob id in TO, or to null if the file is not in
+     *  TO. Subtrees with the same id on both sides are skipped whole. */
+    static Map<String, String> diff(String from, String to) {
+        Map<String, String> changes = new TreeMap<>();
+        diff(from, to, "", changes);
+        return changes;
+    }
+
+    /** Add the differences between the trees FROM and TO, either of which
+     *  may be null, to CHANGES as for diff, each path prefixed with
+     *  PREFIX. */
+    private static void diff(String from, String to, String prefix,
+                             Map<String, String> changes) {
+        if (Objects.equals(from, to)) {
+            return;
+        }
+        Tree a = read(from);
+        Tree b = read(to);
+        TreeSet<String> names = new TreeSet<>(a.entries.keySet());
+        names.addAll(b.entries.keySet());
+        for (String name : names) {
+            Entry x = a.entries.get(name);
+            Entry y = b.entries.get(name);
+            if (x != null && y != null && x.isDirectory == y.isDirectory
+                    && x.id.equals(y.id)) {
+                continue;
+            }
+            String path = prefix + name;
+            String fromDir = x != null && x.isDirectory ? x.id : null;
+            String toDir = y != null && y.isDirectory ? y.id : null;
+            if (fromDir != null || toDir != null) {
+                diff(fromDir, toDir, path + "/", changes);
+            }
+            if (x != null && !x.isDirectory && (y == null || y.isDirectory)) {
+                changes.put(path, null);
+            }
+            if (y != null && !y.isDirectory) {
+                changes.put(path, y.id);
+            }
+        }
+    }
+}
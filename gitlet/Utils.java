@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -17,6 +18,11 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Formatter;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 
 /** Assorted utilities.
@@ -63,6 +69,57 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Returns the 20 raw bytes denoted by the hexadecimal SHA-1 UID, or null
+     *  if UID is not a well-formed 40-digit hexadecimal numeral. */
+    static byte[] sha1ToBytes(String uid) {
+        if (uid == null || uid.length() != UID_LENGTH) {
+            return null;
+        }
+        byte[] result = new byte[UID_LENGTH / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            int hi = hexValue(uid.charAt(2 * i));
+            int lo = hexValue(uid.charAt(2 * i + 1));
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            result[i] = (byte) ((hi << 4) | lo);
+        }
+        return result;
+    }
+
+    /** Lower-case hexadecimal digits, as ASCII bytes. */
+    private static final byte[] HEX_DIGITS =
+        "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    /** The value of each ASCII hexadecimal digit, -1 for other characters. */
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i += 1) {
+            HEX_VALUES[Character.forDigit(i, 16)] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(Character.forDigit(i, 16))] = (byte) i;
+        }
+    }
+
+    /** Returns the value of the hexadecimal digit C, or -1 if C is not
+     *  one. */
+    private static int hexValue(char c) {
+        return c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+    }
+
+    /** Returns the hexadecimal numeral for the LEN raw bytes of BYTES
+     *  starting at OFFSET. */
+    static String bytesToSha1(byte[] bytes, int offset, int len) {
+        byte[] result = new byte[2 * len];
+        for (int i = 0; i < len; i += 1) {
+            int b = bytes[offset + i] & 0xff;
+            result[2 * i] = HEX_DIGITS[b >>> 4];
+            result[2 * i + 1] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(result, StandardCharsets.US_ASCII);
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -152,6 +209,19 @@ class Utils {
         }
     }
 
+    /** Return an object of type T read from the stream IN, casting it to
+     *  EXPECTEDCLASS, and close IN.  Throws IllegalArgumentException in
+     *  case of problems. */
+    static <T extends Serializable> T readObject(InputStream in,
+                                                 Class<T> expectedClass) {
+        try (in; ObjectInputStream objectIn = new ObjectInputStream(in)) {
+            return expectedClass.cast(objectIn.readObject());
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /** Write OBJ to FILE. */
     static void writeObject(File file, Serializable obj) {
         writeContents(file, serialize(obj));
@@ -221,6 +291,94 @@ class Utils {
     }
 
 
+    /** Returns true if DATA starts like a Java serialization stream, as
+     *  written by serialize. */
+    static boolean isSerialized(byte[] data) {
+        return data.length >= 2 && data[0] == (byte) 0xac && data[1] == (byte) 0xed;
+    }
+
+
+    /* BINARY ENCODING */
+
+    /** Write the string S to OUT as a varint length and its UTF-8 bytes. */
+    static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        Delta.writeVarint(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    /** Read a string written by writeString from DATA at POS[0], advancing
+     *  POS[0]. */
+    static String readString(byte[] data, int[] pos) {
+        int length = (int) Delta.readVarint(data, pos);
+        String result = new String(data, pos[0], length, StandardCharsets.UTF_8);
+        pos[0] += length;
+        return result;
+    }
+
+    /** Write the hexadecimal SHA-1 UID to OUT as 20 raw bytes. */
+    static void writeId(ByteArrayOutputStream out, String uid) {
+        byte[] bytes = sha1ToBytes(uid);
+        if (bytes == null) {
+            throw error("Malformed object id %s.", uid);
+        }
+        out.writeBytes(bytes);
+    }
+
+    /** Read an id written by writeId from DATA at POS[0], advancing
+     *  POS[0]. */
+    static String readId(byte[] data, int[] pos) {
+        String result = bytesToSha1(data, pos[0], UID_LENGTH / 2);
+        pos[0] += UID_LENGTH / 2;
+        return result;
+    }
+
+
+
+    /* PARALLELISM */
+
+    /** Run BODY for every index in [0, COUNT) on a fork-join pool of JOBS
+     *  threads, and wait for all of them. BODY must be safe to run from
+     *  several threads at once. Once BODY throws, the indices not yet
+     *  started are skipped, and the first exception is rethrown here only
+     *  after every call already running has returned, so that no call is
+     *  left writing behind the caller's back. */
+    static void parallelFor(int jobs, int count, IntConsumer body) {
+        if (jobs <= 1 || count <= 1) {
+            for (int i = 0; i < count; i += 1) {
+                body.accept(i);
+            }
+            return;
+        }
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        ForkJoinPool pool = new ForkJoinPool(jobs);
+        try {
+            pool.submit(() -> IntStream.range(0, count).parallel().forEach(i -> {
+                if (failure.get() != null) {
+                    return;
+                }
+                try {
+                    body.accept(i);
+                } catch (RuntimeException | Error excp) {
+                    failure.compareAndSet(null, excp);
+                }
+            })).get();
+        } catch (ExecutionException excp) {
+            throw new IllegalArgumentException(excp.getCause().getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+        if (failure.get() instanceof Error) {
+            throw (Error) failure.get();
+        } else if (failure.get() != null) {
+            throw (RuntimeException) failure.get();
+        }
+    }
+
+
 
     /* MESSAGES AND ERROR REPORTING */
 
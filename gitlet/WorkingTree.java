@@ -0,0 +1,127 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/** Scans the working directory of a repository: every file in it and in
+ *  the directories below, with its stat data, in one pass. Each directory
+ *  is listed by a task of its own on a work-stealing pool, so wide and
+ *  deep trees are read on several threads at once. Hidden directories,
+ *  .gitlet among them, and ignored directories are pruned before they are
+ *  entered.
+ *
+ *  Where the file system has unix attributes, the type, size, mtime and
+ *  inode of an entry come from a single lstat, and match what
+ *  StatCache.stat reports for the same file.
+ *  @author BillyDu
+ */
+class WorkingTree {
+    /** True if the default file system has the "unix" attribute view. */
+    private static final boolean HAS_UNIX_VIEW =
+            FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+    /** The attributes read for every entry. */
+    private static final String ATTRIBUTES =
+            "size,lastModifiedTime,isRegularFile,isDirectory,isSymbolicLink";
+
+    /** Return every file in the working directory and below, mapped from
+     *  its path relative to the working directory, with '/' between
+     *  names, to its stat data, in path order. Directories that are
+     *  hidden or that IGNORE names are skipped, and symbolic links are
+     *  followed to files but not to directories. Directories are listed
+     *  on JOBS threads. */
+    static SortedMap<String, StatCache.Stat> scan(GitletIgnore ignore, int jobs) {
+        List<Map.Entry<String, StatCache.Stat>> files;
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, jobs));
+        try {
+            files = pool.invoke(new ScanTask(Repository.CWD.toPath(), "", ignore));
+        } finally {
+            pool.shutdown();
+        }
+        SortedMap<String, StatCache.Stat> result = new TreeMap<>();
+        for (Map.Entry<String, StatCache.Stat> file : files) {
+            result.put(file.getKey(), file.getValue());
+        }
+        return result;
+    }
+
+    /** Return the working directory as for scan, on one thread per
+     *  available processor. */
+    static SortedMap<String, StatCache.Stat> scan(GitletIgnore ignore) {
+        return scan(ignore, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Lists one directory, forking a task for each subdirectory. */
+    private static class ScanTask
+            extends RecursiveTask<List<Map.Entry<String, StatCache.Stat>>> {
+        private static final long serialVersionUID = 1L;
+
+        /** The directory to list. */
+        private final Path dir;
+        /** The path of DIR relative to the working directory, followed by
+         *  '/', or "" for the working directory itself. */
+        private final String prefix;
+        /** The ignored names. */
+        private final GitletIgnore ignore;
+
+        ScanTask(Path dir, String prefix, GitletIgnore ignore) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.ignore = ignore;
+        }
+
+        @Override
+        protected List<Map.Entry<String, StatCache.Stat>> compute() {
+            List<Map.Entry<String, StatCache.Stat>> files = new ArrayList<>();
+            List<ScanTask> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    String path = prefix + name;
+                    Map<String, Object> attrs = Files.readAttributes(entry,
+                            HAS_UNIX_VIEW ? "unix:ino," + ATTRIBUTES : ATTRIBUTES,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if ((Boolean) attrs.get("isRegularFile")) {
+                        files.add(Map.entry(path, toStat(attrs)));
+                    } else if ((Boolean) attrs.get("isSymbolicLink")) {
+                        if (Files.isRegularFile(entry)) {
+                            files.add(Map.entry(path, StatCache.stat(entry.toFile())));
+                        }
+                    } else if ((Boolean) attrs.get("isDirectory")
+                            && !name.startsWith(".") && !ignore.isIgnored(path)) {
+                        ScanTask subdir = new ScanTask(entry, path + "/", ignore);
+                        subdir.fork();
+                        subdirs.add(subdir);
+                    }
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            for (ScanTask subdir : subdirs) {
+                files.addAll(subdir.join());
+            }
+            return files;
+        }
+    }
+
+    /** Return the stat data in the attribute map ATTRS. */
+    private static StatCache.Stat toStat(Map<String, Object> attrs) {
+        Object ino = attrs.get("ino");
+        return new StatCache.Stat(
+                ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+                (Long) attrs.get("size"),
+                ino instanceof Number ? ((Number) ino).longValue() : 0);
+    }
+}
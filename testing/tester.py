@@ -3,7 +3,7 @@ from subprocess import \
      check_output, PIPE, STDOUT, DEVNULL, CalledProcessError, TimeoutExpired
 from os.path import abspath, basename, dirname, exists, join, splitext
 from getopt import getopt, GetoptError
-from os import chdir, environ, getcwd, mkdir, remove, access, W_OK
+from os import chdir, environ, getcwd, mkdir, remove, access, stat, utime, W_OK
 from shutil import copyfile, rmtree
 from math import log
 
@@ -51,6 +51,9 @@ The instructions each have one of the following forms:
           Copy the contents of src/F into a file named NAME.
    - NAME
           Delete the file named NAME.
+   @ NAME1 NAME2
+          Set the modification time of the file named NAME1 to that of
+          the file named NAME2.
    > COMMAND OPERANDS
    LINE1
    LINE2
@@ -156,6 +159,14 @@ def doCopy(dest, src, dir):
     except OSError:
         raise ValueError("file {} could not be copied to {}".format(src, dest))
 
+def doTouch(dest, src, dir):
+    try:
+        mtime = stat(join(dir, src)).st_mtime_ns
+        utime(join(dir, dest), ns=(mtime, mtime))
+    except OSError:
+        raise ValueError("time of {} could not be set to that of {}"
+                         .format(dest, src))
+
 def doExecute(cmnd, dir, timeout, line_num):
     here = getcwd()
     out = ""
@@ -338,6 +349,8 @@ def doTest(test):
                 doCopy(Group(1), Group(2), cdir)
             elif Match(r'-\s*(\S+)', line):
                 doDelete(Group(1), cdir)
+            elif Match(r'@\s*(\S+)\s+(\S+)', line):
+                doTouch(Group(1), Group(2), cdir)
             elif Match(r'>\s*(.*)', line):
                 cmnd = Group(1)
                 expected = []